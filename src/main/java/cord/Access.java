@@ -0,0 +1,96 @@
+package cord;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.logging.Log;
+import org.neo4j.procedure.*;
+
+import cord.common.AllRoles;
+import cord.common.BaseNodeLabels;
+import cord.roles.BaseRole;
+
+public class Access {
+
+    @Context
+    public Log log;
+
+    @Context
+    public Transaction tx;
+
+    @Context
+    public GraphDatabaseService db;
+
+    @Procedure(value = "cord.permissionsFor", mode = Mode.READ)
+    @Description("A user's {property: {read, edit}} grants on each of the base nodes of a label, in one call. Long id lists are resolved in parallel, unless the transaction has uncommitted writes.")
+    public Stream<PermissionResolver.NodePermissions> permissionsFor(
+      @Name("userId") String userId,
+      @Name("baseNodeIds") List<String> baseNodeIds,
+      @Name("label") String label,
+      @Name(value = "parallelism", defaultValue = "4") Long parallelism
+    ) throws RuntimeException {
+
+      return new PermissionResolver(db, log, parallelism).resolve(tx, userId, baseNodeIds, label).stream();
+    }
+
+    @UserFunction("cord.filterReadable")
+    @Description("The nodes, in their order, on which the user can read the property. For list queries: WITH cord.filterReadable($userId, collect(node), 'name') as nodes")
+    public List<Node> filterReadable(
+      @Name("userId") String userId,
+      @Name("nodes") List<Node> nodes,
+      @Name("property") String property
+    ){
+
+      return new PermissionResolver(db, log, 1).filterReadable(tx, userId, nodes, property);
+    }
+
+    @UserFunction("cord.securityGroupPermissions")
+    @Description("An SG's grants as {property: {read, edit}}, whether they are stored as masks, Permission nodes or a template.")
+    public Map<String, Object> securityGroupPermissions(
+      @Name("sg") Node sg
+    ){
+
+      return sg == null ? null : new PermissionResolver(db, log, 1).getSecurityGroupPermissions(sg);
+    }
+
+    @Procedure(value = "cord.permissionMatrix", mode = Mode.READ)
+    @Description("The compiled role x label grants as {role, label, permissions: {property: 'NO' | 'RO' | 'RW'}} rows.")
+    public Stream<PermissionMatrixResponse> permissionMatrix(){
+
+      PermissionMatrix matrix = PermissionMatrix.getInstance();
+      Stream.Builder<PermissionMatrixResponse> responses = Stream.builder();
+
+      for (BaseRole role: AllRoles.getInstance().allRolesList()){
+        for (BaseNodeLabels label: BaseNodeLabels.values()){
+          List<String> properties = matrix.getProperties(label);
+          if (properties == null){
+            continue;
+          }
+
+          Map<String, Object> permissions = new LinkedHashMap<>();
+          for (int i = 0; i < properties.size(); i++){
+            permissions.put(properties.get(i), matrix.get(role.roleName, label, i).name());
+          }
+          responses.add(new PermissionMatrixResponse(role.roleName.name(), label.name(), permissions));
+        }
+      }
+
+      return responses.build();
+    }
+
+    public static class PermissionMatrixResponse {
+      public String role;
+      public String label;
+      public Map<String, Object> permissions;
+
+      public PermissionMatrixResponse(String role, String label, Map<String, Object> permissions){
+        this.role = role;
+        this.label = label;
+        this.permissions = permissions;
+      }
+    }
+
+  }
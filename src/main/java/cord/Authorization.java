@@ -1,150 +1,107 @@
 package cord;
 
-import java.time.ZonedDateTime;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.stream.Stream;
 
 import org.neo4j.graphdb.*;
 import org.neo4j.logging.Log;
 import org.neo4j.procedure.*;
 
-import cord.common.AllProperties;
-import cord.common.AllRoles;
-import cord.common.BaseNodeLabels;
-import cord.common.NonBaseNodeLabels;
-import cord.common.NonPropertyRelationshipTypes;
-import cord.common.RoleNames;
-import cord.model.Perm;
-import cord.roles.*;
+import cord.cache.SecurityCaches;
+import cord.queue.SecurityQueue;
 
 public class Authorization {
 
     @Context
     public Log log;
 
+    @Context
+    public Transaction tx;
+
     @Context
     public GraphDatabaseService db;
 
     @Procedure(value = "cord.processNewBaseNode", mode = Mode.WRITE)
-    @Description("Add security and grant access to new node. NOT IDEMPOTENT!")
+    @Description("Add security and grant access to new node in the caller's transaction. options: {permissionStorage: 'node' | 'template' | 'bitmask' | 'virtual', membership: 'direct' | 'shared', idempotent: boolean}. NOT IDEMPOTENT unless idempotent is true.")
     public Stream<ProcessNewBaseNodeResponse> processNewBaseNode(
       @Name("baseNodeId") String baseNodeId,
       @Name("baseNodeLabel") String baseNodeLabel,
-      @Name("creatorUserId") String creatorUserId
+      @Name("creatorUserId") String creatorUserId,
+      @Name(value = "options", defaultValue = "{}") Map<String, Object> options
     ) throws RuntimeException {
 
       try {
 
-        AllRoles allRoles = new AllRoles();
-
-        Long baseNodeNeoId = Utility.getNode(db, baseNodeId, baseNodeLabel);
-        
-        // get the base node's labels and model
-        BaseNodeLabels label = Utility.baseNodeClassStringToEnum(baseNodeLabel);
-        ArrayList<String> model = Utility.getBaseNodePropertiesByLabel(label);
-
-        // create permission nodes for each property
-        HashMap<String, Long> permMap = this.createAllPermissionNodes(baseNodeNeoId, label, model);
-
-        // create SGs for all the global roles      
-        HashMap<RoleNames, Long> sgMap = new HashMap<RoleNames, Long>();
-
-        for (BaseRole role: allRoles.globalRolesList()){
-          Long sgNodeNeoId = this.mergeSecurityGroupForRole(role, baseNodeId, baseNodeNeoId, label, model, permMap);
-          sgMap.put(role.roleName, sgNodeNeoId);
-          
-          // global role users
-          this.addRoleMembersToSg(role, sgNodeNeoId);
+        try (SecurityProcessor processor = new SecurityProcessor(tx, log, SecurityOptions.fromMap(options), 
+          SecurityCaches.forDatabase(db.databaseName()))) {
+          processor.processBaseNode(baseNodeId, baseNodeLabel, creatorUserId);
         }
 
-        // determine if the creator should be added to the admin group for this node
-        // and if to create project role SGs
-        Boolean isProjectContextNode = Utility.isProjectContextNode(label);
+        return Stream.of(new ProcessNewBaseNodeResponse(true));
 
-        if (isProjectContextNode) {
+      } catch (Exception e){
+        e.printStackTrace();
+        this.log.error(e.getMessage());
+        throw new RuntimeException("error in processing new base node " + baseNodeId);
+      } 
+    }
 
-          // get project members
-          Long projectNodeNeoId = Utility.getProjectNode(db, baseNodeNeoId, label);
-          if (projectNodeNeoId == null){
-            this.log.error("project id not found. skipping adding project members to new node. baseNodeNeoId: " + baseNodeNeoId + " label: " + label);
-          } else {    
-            ArrayList<Long> members = Utility.getProjectMembers(db, projectNodeNeoId);
+    @Procedure(value = "cord.processNewBaseNodes", mode = Mode.WRITE)
+    @Description("Add security and grant access to a list of new nodes ({baseNodeId, label, creatorUserId}) in the caller's transaction. Same options as cord.processNewBaseNode. NOT IDEMPOTENT unless idempotent is true.")
+    public Stream<ProcessNewBaseNodesResponse> processNewBaseNodes(
+      @Name("baseNodes") List<Map<String, Object>> baseNodes,
+      @Name(value = "options", defaultValue = "{}") Map<String, Object> options
+    ) throws RuntimeException {
 
-            for (BaseRole role: allRoles.projectRolesList()){
-              Long sgNodeNeoId = this.mergeSecurityGroupForRole(role, baseNodeId, baseNodeNeoId, label, model, permMap);
-              sgMap.put(role.roleName, sgNodeNeoId);
-            }
+      // roles, global role users and project members are shared by the whole batch
+      Stream.Builder<ProcessNewBaseNodesResponse> responses = Stream.builder();
 
-            System.out.println("member count:" + members.size());
+      try (SecurityProcessor processor = new SecurityProcessor(tx, log, SecurityOptions.fromMap(options), 
+          SecurityCaches.forDatabase(db.databaseName()))) {
 
-            this.processProjectMember(members, sgMap, allRoles);
+        for (Map<String, Object> baseNode: baseNodes){
+          String baseNodeId = (String) baseNode.get("baseNodeId");
+          String baseNodeLabel = (String) baseNode.get("label");
+          String creatorUserId = (String) baseNode.get("creatorUserId");
 
+          if (baseNodeId == null || baseNodeLabel == null){
+            throw new RuntimeException("baseNodeId and label are required for each base node: " + baseNode);
           }
 
-        } else {
+          try {
+            processor.processBaseNode(baseNodeId, baseNodeLabel, creatorUserId);
+          } catch (Exception e){
+            e.printStackTrace();
+            this.log.error(e.getMessage());
+            throw new RuntimeException("error in processing new base node " + baseNodeId);
+          }
 
-          // add creator to admin group
-          this.addMemberToSg(creatorUserId, sgMap.get(RoleNames.AdministratorRole));
+          responses.add(new ProcessNewBaseNodesResponse(baseNodeId, true));
         }
+      }
 
-        return Stream.of(new ProcessNewBaseNodeResponse(true));
+      return responses.build();
+    }
+
+    @Procedure(value = "cord.enqueueNewBaseNode", mode = Mode.WRITE)
+    @Description("Queue a new node for security, processed by background workers after the caller's transaction commits. Same options as cord.processNewBaseNode. See cord.queueStatus.")
+    public Stream<EnqueueNewBaseNodeResponse> enqueueNewBaseNode(
+      @Name("baseNodeId") String baseNodeId,
+      @Name("baseNodeLabel") String baseNodeLabel,
+      @Name("creatorUserId") String creatorUserId,
+      @Name(value = "options", defaultValue = "{}") Map<String, Object> options
+    ) throws RuntimeException {
+
+      try {
+
+        SecurityQueue.enqueue(tx, baseNodeId, baseNodeLabel, creatorUserId, options);
+        return Stream.of(new EnqueueNewBaseNodeResponse(true));
 
       } catch (Exception e){
         e.printStackTrace();
         this.log.error(e.getMessage());
-        throw new RuntimeException("error in processing new base node " + baseNodeId);
-      } 
-    }
-
-    public void processProjectMember(ArrayList<Long> members, HashMap<RoleNames, Long> sgMap, AllRoles allRoles) throws RuntimeException {
-      try ( Transaction tx = db.beginTx() )
-      {
-        // add all project members to this base node for their correct role
-        members.forEach(memberNodeNeoId -> {
-          Node memberNode = tx.getNodeById(memberNodeNeoId);
-          // get member's roles
-          Iterable<Relationship> toRolesIter = memberNode.getRelationships(Direction.OUTGOING, 
-          RelationshipType.withName(AllProperties.roles.name()));
-          toRolesIter.forEach(rel -> {
-            if ((Boolean)rel.getProperty(AllProperties.active.name()) == true){
-              Node rolesNode = rel.getEndNode();
-              if (rolesNode.hasProperty(AllProperties.value.name())){
-
-                String[] roles = (String[]) rolesNode.getProperty(AllProperties.value.name());
-                if (roles != null){
-                  
-                  for (String role: roles){
-                    // map role string to a role object
-
-                    RoleNames dbRole = AllRoles.getRoleNameEnumFromFeString(role, true);
-                    BaseRole roleObj = allRoles.getRoleByStringName(dbRole.name());
-                    
-                    // get member's user node
-                    Relationship toUser = memberNode.getSingleRelationship(
-                      RelationshipType.withName(AllProperties.user.name()),
-                      Direction.OUTGOING);
-                      Node memberUserNode = toUser.getEndNode();
-                      // get role SG node
-                      Long roleNodeNeoId = sgMap.get(roleObj.roleName);
-                      Node roleNode = tx.getNodeById(roleNodeNeoId);
-                      
-                      // attach user to SG of the role
-                      roleNode.createRelationshipTo(memberUserNode, 
-                      RelationshipType.withName(NonPropertyRelationshipTypes.member.name()));
-                    }
-                  } else {
-                    this.log.error("roles is null");
-                  }
-                }
-            }
-          });
-
-        });
-        tx.commit();
-      } catch(Exception e){
-        e.printStackTrace();
-        throw new RuntimeException("error in processing project member");
+        throw new RuntimeException("error in queueing new base node " + baseNodeId);
       }
     }
 
@@ -156,178 +113,26 @@ public class Authorization {
       }
     }
 
-    private Long mergeSecurityGroupForRole( 
-      BaseRole role, 
-      String baseNodeId, 
-      Long baseNodeNeoId, 
-      BaseNodeLabels label, 
-      ArrayList<String> model,
-      HashMap<String, Long> permMap
-    ){
-      
-      Long sgNeoId = Utility.getSecurityGroupNode(db, role, baseNodeId, label);
-      if (sgNeoId == null){
-        sgNeoId = this.createSecurityGroup(role, baseNodeNeoId, label, model, permMap);
-      } 
-      return sgNeoId;
-    }
-
-    private Long createSecurityGroup(
-      BaseRole role, 
-      Long baseNodeNeoId, 
-      BaseNodeLabels label, 
-      ArrayList<String> model, 
-      HashMap<String, Long> permMap
-    ){
-
-      final Long sgNodeNeoId;
-      try ( Transaction tx = db.beginTx() )
-      {
-        Node baseNode = tx.getNodeById(baseNodeNeoId);
-        // create the security group node and connect it to the base node
-        Node sgNode = tx.createNode(
-          Label.label(NonBaseNodeLabels.SecurityGroup.name())
-        );
-        sgNodeNeoId = sgNode.getId();
-        sgNode.setProperty(AllProperties.id.name(), this.getUniqueIdFromNeo4jId(sgNodeNeoId)); 
-        sgNode.setProperty(AllProperties.createdAt.name(), ZonedDateTime.now() );
-        sgNode.setProperty(AllProperties.role.name(), role.roleName.name());
-        sgNode.createRelationshipTo(baseNode, 
-          RelationshipType.withName(NonPropertyRelationshipTypes.baseNode.name()));
-        
-        // add all permissions to the SG according to the role and base node class
-        // cycle through properties of base node
-        model.forEach(property -> {
-
-          // determine if the role grants the prop
-          Perm grant = role.permission.permission(label, property); 
-
-          // get permision nodes and connect them if permitted
-          Long readPermNeoId = permMap.get(property+"Read");
-          Long editPermNeoId = permMap.get(property+"Edit");
-
-          Node readPerm = tx.getNodeById(readPermNeoId);
-          Node editPerm = tx.getNodeById(editPermNeoId);
-
-          if (readPerm != null && editPerm != null){
-            
-            switch (grant){
-              case RO: 
-                sgNode.createRelationshipTo(readPerm, 
-                  RelationshipType.withName(NonPropertyRelationshipTypes.permission.name()));
-              return;
-              case RW: 
-                sgNode.createRelationshipTo(readPerm, 
-                  RelationshipType.withName(NonPropertyRelationshipTypes.permission.name()));
-                sgNode.createRelationshipTo(editPerm, 
-                  RelationshipType.withName(NonPropertyRelationshipTypes.permission.name()));
-              return;
-              default: return;
-            }
-          }
-        });
+    public static class EnqueueNewBaseNodeResponse {
+      public Boolean queued;
 
-        tx.commit();
-      } catch(Exception e){
-        this.log.error(e.getMessage());
-        throw new RuntimeException("failed to create security group");
+      public EnqueueNewBaseNodeResponse(Boolean queued){
+        this.queued = queued;
       }
-
-      return sgNodeNeoId;
-    }
-
-    private String getUniqueIdFromNeo4jId(Long id){
-      return "i0_" + Long.valueOf(id); // todo, replace with nanoid like impl
     }
 
-    private HashMap<String, Long> createAllPermissionNodes(Long baseNodeNeoId, BaseNodeLabels label, ArrayList<String> propertyList) throws RuntimeException {
-
-      try ( Transaction tx = db.beginTx() )
-      {
-        HashMap<String, Long> map = new HashMap<String, Long>();
-
-        Node baseNode = tx.getNodeById(baseNodeNeoId);
+    public static class ProcessNewBaseNodesResponse {
+      public String baseNodeId;
+      public Boolean success;
 
-        propertyList.forEach(property -> {
-  
-          String propertyLabelForPerm = label.name() + property;
-  
-          Node permRead = tx.createNode(
-            Label.label(NonBaseNodeLabels.Permission.name()), 
-            Label.label(propertyLabelForPerm),
-            Label.label(NonBaseNodeLabels.canRead.name())
-            );
-          permRead.setProperty(AllProperties.property.name(), property);
-          permRead.setProperty(AllProperties.read.name(), true);
-          permRead.createRelationshipTo(baseNode, 
-            RelationshipType.withName(NonPropertyRelationshipTypes.baseNode.name()));
-
-          map.put(property+"Read", permRead.getId());
-  
-          Node permEdit = tx.createNode(
-            Label.label(NonBaseNodeLabels.Permission.name()), 
-            Label.label(propertyLabelForPerm),
-            Label.label(NonBaseNodeLabels.canRead.name()),
-            Label.label(NonBaseNodeLabels.canEdit.name())
-            );
-          permEdit.setProperty(AllProperties.property.name(), property);
-          permEdit.setProperty(AllProperties.read.name(), true);
-          permEdit.setProperty(AllProperties.edit.name(), true);
-          permEdit.createRelationshipTo(baseNode, 
-            RelationshipType.withName(NonPropertyRelationshipTypes.baseNode.name()));
-
-          map.put(property+"Edit", permEdit.getId());
-            
-        });
-        
-        tx.commit();
-        
-        return map;
-
-      } catch(Exception e){
-        this.log.error(e.getMessage());
-        throw new RuntimeException("error in creating permission nodes");
-      }
-    }
-  
-    public void addMemberToSg(String userId, Long sgNodeNeoId) throws RuntimeException {
-      try ( Transaction tx = this.db.beginTx() )
-      {
-        Node sgNode = tx.getNodeById(sgNodeNeoId);
-        Node userNode = tx.findNode(Label.label(BaseNodeLabels.User.name()), AllProperties.id.name(), userId);
-        sgNode.createRelationshipTo(userNode, 
-          RelationshipType.withName(NonPropertyRelationshipTypes.member.name()));
-        tx.commit();
-      } catch(Exception e){
-        this.log.error(e.getMessage());
-        throw new RuntimeException("error in adding member to SG. userId, sgId: " + userId + " " + sgNodeNeoId);
+      public ProcessNewBaseNodesResponse(String baseNodeId, Boolean success){
+        this.baseNodeId = baseNodeId;
+        this.success = success;
       }
     }
 
-    private void addRoleMembersToSg(BaseRole role, Long sgNodeNeoId){
-
-      try ( Transaction tx = db.beginTx() ) {
-
-          // get all the users with a specific role in their user object
-          String feRoleName = AllRoles.getFrontendRoleNameFromApiRoleName(role.roleName);          
-          
-          tx.execute(
-            "call apoc.periodic.iterate('MATCH (sg:SecurityGroup),(user:User)-[:roles {active: true}]->(roles:Property) "+
-            "WHERE \""+feRoleName+"\" IN roles.value AND id(sg) = "+sgNodeNeoId+" AND NOT (user)<-[:member]-(sg) RETURN user, sg', "+
-            "'MERGE (user)<-[:member]-(sg)', {batchSize:100}) yield batches, total return batches, total"
-          );
-
-          tx.commit();
-
-      } catch(Exception e){
-        e.printStackTrace();
-        throw new RuntimeException("error in adding an SG to all users with a specific role");
-      }
-
-    } 
-
   }
 
 
 
-  
\ No newline at end of file
+  
@@ -0,0 +1,92 @@
+package cord;
+
+import org.neo4j.configuration.Config;
+import org.neo4j.dbms.api.DatabaseManagementService;
+import org.neo4j.kernel.extension.ExtensionFactory;
+import org.neo4j.kernel.extension.ExtensionType;
+import org.neo4j.kernel.extension.context.ExtensionContext;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.kernel.lifecycle.Lifecycle;
+import org.neo4j.kernel.lifecycle.LifecycleAdapter;
+import org.neo4j.logging.internal.LogService;
+
+import cord.cache.SecurityCaches;
+import cord.cache.SecurityEventListener;
+import cord.queue.DeletedBaseNodeListener;
+import cord.queue.NewBaseNodeListener;
+import cord.queue.SecurityQueue;
+
+// Loaded by Neo4j for every database. Registers the listener that keeps the
+// plugin's in-memory security structures current, starts the workers of the
+// security queue and, with cord.autoProcess, queues new base nodes itself. With
+// cord.autoCleanup the security of deleted base nodes is removed by the workers.
+// The settings are declared in CordSettings and read from neo4j.conf.
+public class CordExtensionFactory extends ExtensionFactory<CordExtensionFactory.Dependencies> {
+
+  private static final String SYSTEM_DATABASE_NAME = "system";
+
+  public interface Dependencies {
+    GraphDatabaseAPI graphdatabaseAPI();
+    DatabaseManagementService databaseManagementService();
+    LogService log();
+    Config config();
+  }
+
+  public CordExtensionFactory(){
+    super(ExtensionType.DATABASE, "cord");
+  }
+
+  @Override
+  public Lifecycle newInstance(ExtensionContext context, Dependencies dependencies){
+    GraphDatabaseAPI db = dependencies.graphdatabaseAPI();
+    DatabaseManagementService dbms = dependencies.databaseManagementService();
+    Config config = dependencies.config();
+
+    return new LifecycleAdapter(){
+      private SecurityEventListener listener;
+      private SecurityQueue queue;
+      private NewBaseNodeListener newBaseNodeListener;
+      private DeletedBaseNodeListener deletedBaseNodeListener;
+
+      @Override
+      public void start(){
+        if (db.databaseName().equals(SYSTEM_DATABASE_NAME)){
+          return;
+        }
+        this.listener = new SecurityEventListener(SecurityCaches.forDatabase(db.databaseName()));
+        dbms.registerTransactionEventListener(db.databaseName(), this.listener);
+        dependencies.log().getUserLog(CordExtensionFactory.class).info("cord security listener registered for " + db.databaseName());
+
+        this.queue = SecurityQueue.start(db, dependencies.log().getUserLog(SecurityQueue.class), config);
+        // checks the dynamic cord.autoProcess on every transaction, so it can be switched at runtime,
+        // and wakes the queue after any commit that queued items
+        this.newBaseNodeListener = new NewBaseNodeListener(this.queue, config);
+        dbms.registerTransactionEventListener(db.databaseName(), this.newBaseNodeListener);
+        this.deletedBaseNodeListener = new DeletedBaseNodeListener(this.queue, config);
+        dbms.registerTransactionEventListener(db.databaseName(), this.deletedBaseNodeListener);
+      }
+
+      @Override
+      public void stop(){
+        if (this.newBaseNodeListener != null){
+          dbms.unregisterTransactionEventListener(db.databaseName(), this.newBaseNodeListener);
+          this.newBaseNodeListener = null;
+        }
+        if (this.deletedBaseNodeListener != null){
+          dbms.unregisterTransactionEventListener(db.databaseName(), this.deletedBaseNodeListener);
+          this.deletedBaseNodeListener = null;
+        }
+        if (this.queue != null){
+          this.queue.stop();
+          this.queue = null;
+        }
+        if (this.listener == null){
+          return;
+        }
+        dbms.unregisterTransactionEventListener(db.databaseName(), this.listener);
+        SecurityCaches.remove(db.databaseName());
+        this.listener = null;
+      }
+    };
+  }
+}
@@ -0,0 +1,43 @@
+package cord;
+
+import static org.neo4j.configuration.SettingConstraints.min;
+import static org.neo4j.configuration.SettingImpl.newBuilder;
+import static org.neo4j.configuration.SettingValueParsers.BOOL;
+import static org.neo4j.configuration.SettingValueParsers.INT;
+import static org.neo4j.configuration.SettingValueParsers.LONG;
+
+import org.neo4j.configuration.Description;
+import org.neo4j.configuration.SettingsDeclaration;
+import org.neo4j.graphdb.config.Setting;
+
+// The plugin's settings, set in neo4j.conf. The dynamic ones are read on every
+// transaction, so they can also be switched at runtime. The queue's settings are
+// read when a database starts.
+public class CordSettings implements SettingsDeclaration {
+
+  @Description("Queue security for every node created with the BaseNode label and a modelled label, " +
+    "so callers don't have to call cord.processNewBaseNode after a create.")
+  public static final Setting<Boolean> autoProcess = newBuilder("cord.autoProcess", BOOL, false).dynamic().build();
+
+  @Description("Remove the security groups and permission nodes of deleted base nodes with the queue's workers, " +
+    "after the delete committed.")
+  public static final Setting<Boolean> autoCleanup = newBuilder("cord.autoCleanup", BOOL, false).dynamic().build();
+
+  @Description("Number of workers draining the security queue of each database.")
+  public static final Setting<Integer> queueWorkers = newBuilder("cord.queue.workers", INT, 2).addConstraint(min(1)).build();
+
+  @Description("Number of queue items a worker secures in one transaction.")
+  public static final Setting<Integer> queueBatchSize = newBuilder("cord.queue.batchSize", INT, 100).addConstraint(min(1)).build();
+
+  @Description("Delay in milliseconds before a worker polls the queue again.")
+  public static final Setting<Long> queuePollMillis = newBuilder("cord.queue.pollMillis", LONG, 500L).addConstraint(min(1L)).build();
+
+  @Description("Longest delay in milliseconds between polls while the queue stays empty.")
+  public static final Setting<Long> queueMaxPollMillis = newBuilder("cord.queue.maxPollMillis", LONG, 30000L).addConstraint(min(1L)).build();
+
+  @Description("Number of failed attempts after which a queue item is parked as :SecurityQueueFailed.")
+  public static final Setting<Integer> queueMaxAttempts = newBuilder("cord.queue.maxAttempts", INT, 3).addConstraint(min(1)).build();
+
+  @Description("Number of nodes the queue's workers delete in one transaction when cleaning up security.")
+  public static final Setting<Integer> cleanupBatchSize = newBuilder("cord.cleanup.batchSize", INT, 1000).addConstraint(min(1)).build();
+}
@@ -0,0 +1,330 @@
+package cord;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.logging.Log;
+import org.neo4j.procedure.*;
+
+import cord.cache.CacheStats;
+import cord.cache.SecurityCaches;
+import cord.common.AllProperties;
+import cord.common.AllRoles;
+import cord.common.BaseNodeLabels;
+import cord.common.NonBaseNodeLabels;
+import cord.common.NonPropertyRelationshipTypes;
+import cord.common.PermissionStorage;
+import cord.model.Perm;
+import cord.queue.SecurityQueue;
+import cord.roles.BaseRole;
+
+public class Maintenance {
+
+    @Context
+    public Log log;
+
+    @Context
+    public Transaction tx;
+
+    @Context
+    public GraphDatabaseService db;
+
+    @Procedure(value = "cord.migrateToPermissionTemplates", mode = Mode.WRITE)
+    @Description("Move SGs with per node Permission nodes onto shared permission templates, in committed batches of base nodes. Only SGs whose stored grants are exactly their role's move, the others are marked storage 'node' and keep their Permission nodes.")
+    public Stream<MigrationResponse> migrateToPermissionTemplates(
+      @Name(value = "batchSize", defaultValue = "100") Long batchSize
+    ) throws RuntimeException {
+
+      MigrationResponse response = new MigrationResponse();
+      AllRoles allRoles = AllRoles.getInstance();
+      PermissionResolver resolver = new PermissionResolver(db, log, 1);
+
+      SecurityOptions options = new SecurityOptions();
+      options.permissionStorage = PermissionStorage.template;
+
+      long[] baseNodeIds = this.getBaseNodeIds(sg -> !sg.hasProperty(AllProperties.storage.name()));
+      int batch = (int) Math.max(1, batchSize);
+
+      for (int start = 0; start < baseNodeIds.length; start += batch){
+        try ( Transaction tx = db.beginTx() ) {
+
+          try (SecurityProcessor processor = new SecurityProcessor(tx, log, options)) {
+
+            for (int next = start; next < Math.min(start + batch, baseNodeIds.length); next++){
+              Node baseNode;
+              try {
+                baseNode = tx.getNodeById(baseNodeIds[next]);
+              } catch (NotFoundException e){
+                continue; // deleted since the ids were collected
+              }
+              long baseNodeNeoId = baseNode.getId();
+              BaseNodeLabels label = Utility.getBaseNodeLabel(baseNode);
+
+              for (Relationship toBaseNode: baseNode.getRelationships(Direction.INCOMING,
+                RelationshipType.withName(NonPropertyRelationshipTypes.baseNode.name()))){
+
+                Node sgNode = toBaseNode.getStartNode();
+                if (!sgNode.hasLabel(Label.label(NonBaseNodeLabels.SecurityGroup.name()))
+                  || sgNode.hasProperty(AllProperties.storage.name())){
+                  continue;
+                }
+
+                BaseRole role = allRoles.getRoleByStringName((String) sgNode.getProperty(AllProperties.role.name(), ""));
+                if (label == null || role == null || PermissionMatrix.getInstance().getProperties(label) == null){
+                  // mark it so the next run doesn't pick it up again
+                  this.log.error("cannot migrate SG " + sgNode.getId() + " of base node " + baseNodeNeoId);
+                  sgNode.setProperty(AllProperties.storage.name(), PermissionStorage.node.name());
+                  continue;
+                }
+
+                // a template holds today's grants of the role, so an SG granting anything
+                // else would change who can read or edit the node
+                if (!this.grantsRole(resolver.getSecurityGroupGrants(sgNode, label), role, label)){
+                  this.log.warn("SG " + sgNode.getId() + " of base node " + baseNodeNeoId + " grants more or less than its role, kept on Permission nodes");
+                  sgNode.setProperty(AllProperties.storage.name(), PermissionStorage.node.name());
+                  response.securityGroupsSkipped++;
+                  continue;
+                }
+
+                for (Relationship toPerm: sgNode.getRelationships(Direction.OUTGOING,
+                  RelationshipType.withName(NonPropertyRelationshipTypes.permission.name()))){
+                  toPerm.delete();
+                }
+                processor.linkPermissionTemplate(sgNode.getId(), role, label);
+                response.securityGroups++;
+              }
+
+              response.permissionNodesDeleted += this.deleteUnusedPermissionNodes(baseNode);
+              response.baseNodes++;
+            }
+          }
+
+          tx.commit();
+
+        } catch(Exception e){
+          e.printStackTrace();
+          this.log.error(e.getMessage());
+          throw new RuntimeException("error in migrating to permission templates");
+        }
+      }
+
+      return Stream.of(response);
+    }
+
+    @Procedure(value = "cord.migrateToPermissionMasks", mode = Mode.WRITE)
+    @Description("Move SGs with Permission nodes or a permission template onto readMask and editMask properties, keeping the grants they have, in committed batches of base nodes. Reads understand both layouts while it runs. Virtual SGs are left as they are.")
+    public Stream<MigrationResponse> migrateToPermissionMasks(
+      @Name(value = "batchSize", defaultValue = "100") Long batchSize
+    ) throws RuntimeException {
+
+      MigrationResponse response = new MigrationResponse();
+      PermissionResolver resolver = new PermissionResolver(db, log, 1);
+
+      long[] baseNodeIds = this.getBaseNodeIds(sg -> !this.hasMaskStorage(sg));
+      int batch = (int) Math.max(1, batchSize);
+
+      for (int start = 0; start < baseNodeIds.length; start += batch){
+        try ( Transaction tx = db.beginTx() ) {
+
+          for (int next = start; next < Math.min(start + batch, baseNodeIds.length); next++){
+            Node baseNode;
+            try {
+              baseNode = tx.getNodeById(baseNodeIds[next]);
+            } catch (NotFoundException e){
+              continue; // deleted since the ids were collected
+            }
+            BaseNodeLabels label = Utility.getBaseNodeLabel(baseNode);
+            if (label == null){
+              // left as it is, each id is visited once
+              this.log.error("cannot migrate the SGs of base node " + baseNode.getId());
+              continue;
+            }
+
+            for (Relationship toBaseNode: baseNode.getRelationships(Direction.INCOMING,
+              RelationshipType.withName(NonPropertyRelationshipTypes.baseNode.name()))){
+
+              Node sgNode = toBaseNode.getStartNode();
+              if (!sgNode.hasLabel(Label.label(NonBaseNodeLabels.SecurityGroup.name())) || this.hasMaskStorage(sgNode)){
+                continue;
+              }
+
+              boolean[] grants = resolver.getSecurityGroupGrants(sgNode, label);
+              BitSet read = new BitSet();
+              BitSet edit = new BitSet();
+              for (int i = 0; i < grants.length / 2; i++){
+                read.set(i, grants[2 * i]);
+                edit.set(i, grants[2 * i + 1]);
+              }
+
+              for (Relationship toPerm: sgNode.getRelationships(Direction.OUTGOING,
+                RelationshipType.withName(NonPropertyRelationshipTypes.permission.name()),
+                RelationshipType.withName(NonPropertyRelationshipTypes.template.name()))){
+                toPerm.delete();
+              }
+              sgNode.setProperty(AllProperties.readMask.name(), read.toLongArray());
+              sgNode.setProperty(AllProperties.editMask.name(), edit.toLongArray());
+              sgNode.setProperty(AllProperties.storage.name(), PermissionStorage.bitmask.name());
+              response.securityGroups++;
+            }
+
+            response.permissionNodesDeleted += this.deleteUnusedPermissionNodes(baseNode);
+            response.baseNodes++;
+          }
+
+          tx.commit();
+
+        } catch(Exception e){
+          e.printStackTrace();
+          this.log.error(e.getMessage());
+          throw new RuntimeException("error in migrating to permission masks");
+        }
+      }
+
+      return Stream.of(response);
+    }
+
+    @Procedure(value = "cord.rebuildSecurity", mode = Mode.WRITE)
+    @Description("Secure every existing node of the labels, all labels with a model if empty, in parallel committed batches by node id range. Streams a progress row per wave and resumes after the last checkpoint if a run was stopped.")
+    public Stream<SecurityRebuild.RebuildProgress> rebuildSecurity(
+      @Name(value = "labels", defaultValue = "[]") List<String> labels,
+      @Name(value = "batchSize", defaultValue = "1000") Long batchSize,
+      @Name(value = "parallelism", defaultValue = "4") Long parallelism
+    ) throws RuntimeException {
+
+      return new SecurityRebuild(db, log, batchSize, parallelism).rebuild(labels);
+    }
+
+    @Procedure(value = "cord.deleteBaseNodeSecurity", mode = Mode.WRITE)
+    @Description("Delete the SGs and Permission nodes of the base nodes, in committed batches of at most batchSize relationships. Shared templates and membership groups are kept. An empty list removes the security left behind by base nodes that were already deleted.")
+    public Stream<SecurityCleanup.CleanupResponse> deleteBaseNodeSecurity(
+      @Name(value = "baseNodeIds", defaultValue = "[]") List<String> baseNodeIds,
+      @Name(value = "batchSize", defaultValue = "1000") Long batchSize
+    ) throws RuntimeException {
+
+      SecurityCleanup cleanup = new SecurityCleanup(db, log, batchSize);
+      return Stream.of(baseNodeIds.isEmpty() ? cleanup.deleteOrphans() : cleanup.deleteForBaseNodes(baseNodeIds));
+    }
+
+    @Procedure(value = "cord.compactSecurity", mode = Mode.WRITE)
+    @Description("Merge duplicate SGs and Permission nodes of a base node, drop parallel edges out of SGs and delete security without a base node, in parallel committed batches of base nodes. Reports what was reclaimed.")
+    public Stream<SecurityCompaction.CompactionResponse> compactSecurity(
+      @Name(value = "batchSize", defaultValue = "500") Long batchSize,
+      @Name(value = "parallelism", defaultValue = "4") Long parallelism
+    ) throws RuntimeException {
+
+      return Stream.of(new SecurityCompaction(db, log, batchSize, parallelism).compact());
+    }
+
+    @Procedure(value = "cord.ensureSchema", mode = Mode.SCHEMA)
+    @Description("Create the indexes the security paths look nodes up by: id on every base node label, SecurityGroup(role), Permission(property), MembershipGroup(role) and SecurityQueueItem(enqueuedAt), plus uniqueness constraints on the keys of templates, membership groups and rebuild checkpoints. Reports each index, its constraint and its state. With create false only reports, action 'missing' marks a lookup that scans its label or a key that can be duplicated, 'failed' a constraint that existing duplicates prevent.")
+    public Stream<SecuritySchema.IndexResponse> ensureSchema(
+      @Name(value = "create", defaultValue = "true") Boolean create,
+      @Name(value = "timeoutSeconds", defaultValue = "60") Long timeoutSeconds
+    ) throws RuntimeException {
+
+      return new SecuritySchema(db, log).ensure(create, timeoutSeconds).stream();
+    }
+
+    @Procedure(value = "cord.cacheStats", mode = Mode.READ)
+    @Description("Hit, miss, rebuild, invalidation and size statistics of the plugin's in-memory security structures.")
+    public Stream<CacheStats> cacheStats(){
+      SecurityCaches caches = SecurityCaches.forDatabase(db.databaseName());
+      return Stream.of(
+        caches.globalRoleIndex.getStats(),
+        caches.projectMembers.getStats(),
+        caches.projectNodes.getStats(),
+        caches.projectMasks.getStats()
+      );
+    }
+
+    @Procedure(value = "cord.queueStatus", mode = Mode.READ)
+    @Description("Depth, lag and failures of the security queue fed by cord.enqueueNewBaseNode. Items parked after their last attempt are :SecurityQueueFailed nodes holding the error.")
+    public Stream<SecurityQueue.QueueStatus> queueStatus(){
+      return Stream.of(SecurityQueue.getStatus(tx, SecurityQueue.forDatabase(db.databaseName())));
+    }
+
+    // distinct ids of the base nodes of the SGs the filter accepts, ascending. the SGs
+    // are scanned once per run, not once per batch
+    private long[] getBaseNodeIds(Predicate<Node> sgFilter) throws RuntimeException {
+      long[] ids = new long[1024];
+      int count = 0;
+      try (
+        Transaction tx = db.beginTx();
+        ResourceIterator<Node> sgs = tx.findNodes(Label.label(NonBaseNodeLabels.SecurityGroup.name()))
+      ) {
+        while (sgs.hasNext()){
+          Node sgNode = sgs.next();
+          if (!sgFilter.test(sgNode)){
+            continue;
+          }
+          for (Relationship toBaseNode: sgNode.getRelationships(Direction.OUTGOING,
+            RelationshipType.withName(NonPropertyRelationshipTypes.baseNode.name()))){
+            if (count == ids.length){
+              ids = Arrays.copyOf(ids, count * 2);
+            }
+            ids[count++] = toBaseNode.getEndNodeId();
+          }
+        }
+      } catch (Exception e){
+        e.printStackTrace();
+        this.log.error(e.getMessage());
+        throw new RuntimeException("error in finding the base nodes to migrate");
+      }
+      return Arrays.stream(ids, 0, count).sorted().distinct().toArray();
+    }
+
+    private Boolean hasMaskStorage(Node sgNode){
+      Object storage = sgNode.getProperty(AllProperties.storage.name(), null);
+      return PermissionStorage.bitmask.name().equals(storage) || PermissionStorage.virtual.name().equals(storage);
+    }
+
+    // the base node's own Permission nodes are only used by its SGs, so they go once
+    // none of the SGs has a permission edge left, whatever their storage says
+    private long deleteUnusedPermissionNodes(Node baseNode){
+      RelationshipType baseNodeType = RelationshipType.withName(NonPropertyRelationshipTypes.baseNode.name());
+      for (Relationship toBaseNode: baseNode.getRelationships(Direction.INCOMING, baseNodeType)){
+        Node sgNode = toBaseNode.getStartNode();
+        if (sgNode.hasLabel(Label.label(NonBaseNodeLabels.SecurityGroup.name()))
+          && sgNode.hasRelationship(Direction.OUTGOING, RelationshipType.withName(NonPropertyRelationshipTypes.permission.name()))){
+          return 0;
+        }
+      }
+
+      long deleted = 0;
+      for (Relationship toBaseNode: baseNode.getRelationships(Direction.INCOMING, baseNodeType)){
+        Node permNode = toBaseNode.getStartNode();
+        if (!permNode.hasLabel(Label.label(NonBaseNodeLabels.Permission.name()))){
+          continue;
+        }
+        permNode.getRelationships().forEach(Relationship::delete);
+        permNode.delete();
+        deleted++;
+      }
+      return deleted;
+    }
+
+    private Boolean grantsRole(boolean[] grants, BaseRole role, BaseNodeLabels label){
+      PermissionMatrix matrix = PermissionMatrix.getInstance();
+      for (int i = 0; i < grants.length / 2; i++){
+        Perm perm = matrix.get(role.roleName, label, i);
+        if (grants[2 * i] != (perm != Perm.NO) || grants[2 * i + 1] != (perm == Perm.RW)){
+          return false;
+        }
+      }
+      return true;
+    }
+
+    public static class MigrationResponse {
+      public Long baseNodes = 0L;
+      public Long securityGroups = 0L;
+      // SGs left as they were, because their grants differ from their role's
+      public Long securityGroupsSkipped = 0L;
+      public Long permissionNodesDeleted = 0L;
+    }
+
+  }
@@ -0,0 +1,44 @@
+package cord;
+
+import java.util.stream.Stream;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.logging.Log;
+import org.neo4j.procedure.*;
+
+import cord.MembershipSync.SyncResponse;
+
+public class Membership {
+
+    @Context
+    public Log log;
+
+    @Context
+    public GraphDatabaseService db;
+
+    @Procedure(value = "cord.syncProjectMember", mode = Mode.WRITE)
+    @Description("Apply a project member's current project roles to the SGs of every node under the project, adding and removing only the member edges that changed. Runs in its own committed batches after a member, or a member's roles, changed.")
+    public Stream<SyncResponse> syncProjectMember(
+      @Name("projectId") String projectId,
+      @Name("userId") String userId,
+      @Name(value = "batchSize", defaultValue = "500") Long batchSize,
+      @Name(value = "parallelism", defaultValue = "4") Long parallelism
+    ) throws RuntimeException {
+
+      MembershipSync sync = new MembershipSync(db, log, batchSize, parallelism);
+      return Stream.of(sync.syncProjectMember(projectId, userId));
+    }
+
+    @Procedure(value = "cord.syncUserGlobalRoles", mode = Mode.WRITE)
+    @Description("Apply a user's current global roles to every SG of a global role, adding and removing only the member edges that changed. Runs in its own committed batches after a user's roles changed.")
+    public Stream<SyncResponse> syncUserGlobalRoles(
+      @Name("userId") String userId,
+      @Name(value = "batchSize", defaultValue = "500") Long batchSize,
+      @Name(value = "parallelism", defaultValue = "4") Long parallelism
+    ) throws RuntimeException {
+
+      MembershipSync sync = new MembershipSync(db, log, batchSize, parallelism);
+      return Stream.of(sync.syncUserGlobalRoles(userId));
+    }
+
+  }
@@ -0,0 +1,343 @@
+package cord;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.logging.Log;
+
+import cord.cache.ProjectMembers;
+import cord.common.AllRoles;
+import cord.common.AllProperties;
+import cord.common.BaseNodeLabels;
+import cord.common.NonBaseNodeLabels;
+import cord.common.NonPropertyRelationshipTypes;
+import cord.common.RoleNames;
+import cord.roles.BaseRole;
+
+// Brings a user's member edges on existing security in line with the roles
+// they hold now. The expected membership of every SG is worked out once, then
+// the SGs are diffed against the user's actual member edges in committed
+// batches spread over a small pool of threads.
+public class MembershipSync {
+
+  private static final int MAX_ATTEMPTS = 3;
+
+  private static final Label SG_LABEL = Label.label(NonBaseNodeLabels.SecurityGroup.name());
+  private static final Label MG_LABEL = Label.label(NonBaseNodeLabels.MembershipGroup.name());
+  private static final RelationshipType BASE_NODE = RelationshipType.withName(NonPropertyRelationshipTypes.baseNode.name());
+  private static final RelationshipType MEMBER_GROUP = RelationshipType.withName(NonPropertyRelationshipTypes.memberGroup.name());
+
+  private final GraphDatabaseService db;
+  private final Log log;
+  private final int batchSize;
+  private final int parallelism;
+  private final AllRoles allRoles = AllRoles.getInstance();
+
+  public MembershipSync(GraphDatabaseService db, Log log, long batchSize, long parallelism){
+    this.db = db;
+    this.log = log;
+    this.batchSize = (int) Math.max(1, batchSize);
+    this.parallelism = (int) Math.max(1, parallelism);
+  }
+
+  public static class SyncResponse {
+    public Long baseNodes = 0L;
+    public Long securityGroups = 0L;
+    public Long membersAdded = 0L;
+    public Long membersRemoved = 0L;
+    public Long groupsUpdated = 0L;
+  }
+
+  // the project roles the user should be a member for on every node under the project
+  public SyncResponse syncProjectMember(String projectId, String userId) throws RuntimeException {
+
+    SyncResponse response = new SyncResponse();
+    Long userNeoId;
+    List<Long> baseNodes;
+    HashSet<RoleNames> expected = new HashSet<>();
+
+    try (Transaction tx = db.beginTx()) {
+      Long projectNeoId = Utility.getNode(tx, projectId, BaseNodeLabels.Project.name());
+      userNeoId = Utility.getNode(tx, userId, BaseNodeLabels.User.name());
+
+      int projectRoles = Utility.resolveProjectMembers(tx, projectNeoId).getRoles(userNeoId);
+      HashSet<RoleNames> globalRoles = this.getGlobalRoles(tx.getNodeById(userNeoId));
+
+      for (BaseRole role: allRoles.projectRolesList()){
+        // a role that is also global keeps its global holders
+        if ((projectRoles & ProjectMembers.roleBit(role.roleName)) != 0 || globalRoles.contains(role.roleName)){
+          expected.add(role.roleName);
+        }
+      }
+
+      // groups shared by SGs that use membership: 'shared', every copy of a key
+      // in case one was duplicated before the key had its uniqueness constraint
+      for (BaseRole role: allRoles.projectRolesList()){
+        try (ResourceIterator<Node> groups = tx.findNodes(MG_LABEL, AllProperties.key.name(),
+          SecurityProcessor.getProjectMembershipGroupKey(projectId, role.roleName))) {
+          while (groups.hasNext()){
+            if (this.syncMember(groups.next(), tx.getNodeById(userNeoId), expected.contains(role.roleName), response)){
+              response.groupsUpdated++;
+            }
+          }
+        }
+      }
+
+      baseNodes = Utility.getProjectContextNodes(tx, projectNeoId);
+      tx.commit();
+    } catch (Exception e){
+      e.printStackTrace();
+      this.log.error(e.getMessage());
+      throw new RuntimeException("error in syncing project member " + userId + " of project " + projectId);
+    }
+
+    HashSet<String> projectRoleNames = new HashSet<>();
+    allRoles.projectRolesList().forEach(role -> projectRoleNames.add(role.roleName.name()));
+    this.runBatches(baseNodes, response, 
+      (tx, batch, counts) -> this.syncBaseNodes(tx, batch, userNeoId, projectRoleNames, expected, counts));
+    response.baseNodes += baseNodes.size();
+    return response;
+  }
+
+  private HashSet<RoleNames> getGlobalRoles(Node user){
+    List<String> feRoles = Utility.getActiveRoles(user);
+    HashSet<RoleNames> roles = new HashSet<>();
+    for (BaseRole role: allRoles.globalRolesList()){
+      if (feRoles.contains(AllRoles.getFrontendRoleNameFromApiRoleName(role.roleName))){
+        roles.add(role.roleName);
+      }
+    }
+    return roles;
+  }
+
+  // the global roles the user holds now, applied to every SG of a global role. the
+  // user's current SG memberships are read from the user's side, the SGs they are
+  // missing come from the SecurityGroup role index, so only the delta is written.
+  public SyncResponse syncUserGlobalRoles(String userId) throws RuntimeException {
+
+    SyncResponse response = new SyncResponse();
+    Long userNeoId;
+    // SGs the user should join and member edges they should lose
+    List<Long> toAdd = new ArrayList<>();
+    List<Long> toRemove = new ArrayList<>();
+
+    try (Transaction tx = db.beginTx()) {
+      userNeoId = Utility.getNode(tx, userId, BaseNodeLabels.User.name());
+      Node user = tx.getNodeById(userNeoId);
+      HashSet<RoleNames> expected = this.getGlobalRoles(user);
+
+      HashSet<String> globalRoleNames = new HashSet<>();
+      allRoles.globalRolesList().forEach(role -> globalRoleNames.add(role.roleName.name()));
+
+      HashMap<String, HashSet<Long>> joined = new HashMap<>();
+      RelationshipType memberType = RelationshipType.withName(NonPropertyRelationshipTypes.member.name());
+      for (Relationship rel: user.getRelationships(Direction.INCOMING, memberType)){
+        Node sg = rel.getStartNode();
+        String role = (String) sg.getProperty(AllProperties.role.name(), null);
+        if (!sg.hasLabel(SG_LABEL) || !globalRoleNames.contains(role)){
+          continue;
+        }
+        if (expected.contains(RoleNames.valueOf(role))){
+          joined.computeIfAbsent(role, key -> new HashSet<>()).add(sg.getId());
+        } else {
+          toRemove.add(rel.getId());
+        }
+      }
+
+      for (BaseRole role: allRoles.globalRolesList()){
+        String roleName = role.roleName.name();
+        Boolean member = expected.contains(role.roleName);
+
+        // groups shared by SGs that use membership: 'shared'
+        tx.findNodes(MG_LABEL, AllProperties.role.name(), roleName).forEachRemaining(group -> {
+          String key = (String) group.getProperty(AllProperties.key.name(), "");
+          if (key.startsWith("global:") && this.syncMember(group, user, member, response)){
+            response.groupsUpdated++;
+          }
+        });
+
+        if (member){
+          HashSet<Long> current = joined.getOrDefault(roleName, new HashSet<>());
+          tx.findNodes(SG_LABEL, AllProperties.role.name(), roleName).forEachRemaining(sg -> {
+            if (!current.contains(sg.getId())){
+              toAdd.add(sg.getId());
+            }
+          });
+        }
+      }
+      tx.commit();
+    } catch (Exception e){
+      e.printStackTrace();
+      this.log.error(e.getMessage());
+      throw new RuntimeException("error in syncing global roles of user " + userId);
+    }
+
+    HashSet<String> projectRoleNames = new HashSet<>();
+    allRoles.projectRolesList().forEach(role -> projectRoleNames.add(role.roleName.name()));
+
+    this.runBatches(toAdd, response, (tx, batch, counts) -> {
+      Node user = tx.getNodeById(userNeoId);
+      RelationshipType memberType = RelationshipType.withName(NonPropertyRelationshipTypes.member.name());
+      for (Long sgNeoId: batch){
+        Node sg = tx.getNodeById(sgNeoId);
+        counts.securityGroups++;
+        if (sg.hasRelationship(Direction.OUTGOING, MEMBER_GROUP)){
+          continue; // covered by the group
+        }
+        sg.createRelationshipTo(user, memberType);
+        counts.membersAdded++;
+      }
+    });
+
+    this.runBatches(toRemove, response, (tx, batch, counts) -> {
+      // project node neo id -> the user's project roles there
+      HashMap<Long, Integer> projectRoles = new HashMap<>();
+      for (Long relNeoId: batch){
+        Relationship rel;
+        try {
+          rel = tx.getRelationshipById(relNeoId);
+        } catch (NotFoundException e){
+          continue; // removed since it was read
+        }
+        counts.securityGroups++;
+        String role = (String) rel.getStartNode().getProperty(AllProperties.role.name());
+        // a role that is also a project role stays with the user's project roles
+        if (projectRoleNames.contains(role) && this.holdsProjectRole(tx, rel.getStartNode(), userNeoId, RoleNames.valueOf(role), projectRoles)){
+          continue;
+        }
+        rel.delete();
+        counts.membersRemoved++;
+      }
+    });
+
+    return response;
+  }
+
+  private Boolean holdsProjectRole(Transaction tx, Node sg, Long userNeoId, RoleNames role, HashMap<Long, Integer> projectRoles){
+    Relationship toBaseNode = sg.getSingleRelationship(BASE_NODE, Direction.OUTGOING);
+    if (toBaseNode == null){
+      return false;
+    }
+    Node baseNode = toBaseNode.getEndNode();
+    BaseNodeLabels label = Utility.getBaseNodeLabel(baseNode);
+    if (label == null || (label != BaseNodeLabels.Project && !Utility.isProjectContextNode(label))){
+      return false;
+    }
+    Long projectNeoId = Utility.getProjectNode(tx, baseNode.getId(), label);
+    if (projectNeoId == null){
+      return false;
+    }
+    Integer roles = projectRoles.computeIfAbsent(projectNeoId, 
+      project -> Utility.resolveProjectMembers(tx, project).getRoles(userNeoId));
+    return (roles & ProjectMembers.roleBit(role)) != 0;
+  }
+
+  private interface BatchWork {
+    void apply(Transaction tx, List<Long> batch, SyncResponse counts);
+  }
+
+  // runs the work over the items in committed batches on a small pool of threads
+  private void runBatches(List<Long> items, SyncResponse response, BatchWork work) throws RuntimeException {
+
+    AtomicLong securityGroups = new AtomicLong();
+    AtomicLong added = new AtomicLong();
+    AtomicLong removed = new AtomicLong();
+
+    ExecutorService executor = Executors.newFixedThreadPool(this.parallelism);
+    try {
+      List<Future<?>> batches = new ArrayList<>();
+      for (int start = 0; start < items.size(); start += this.batchSize){
+        List<Long> batch = items.subList(start, Math.min(start + this.batchSize, items.size()));
+        batches.add(executor.submit(() -> {
+          SyncResponse counts = this.runBatch(batch, work);
+          securityGroups.addAndGet(counts.securityGroups);
+          added.addAndGet(counts.membersAdded);
+          removed.addAndGet(counts.membersRemoved);
+        }));
+      }
+      for (Future<?> batch: batches){
+        batch.get();
+      }
+    } catch (Exception e){
+      e.printStackTrace();
+      this.log.error(e.getMessage());
+      throw new RuntimeException("error in syncing members in batches of " + items.size());
+    } finally {
+      executor.shutdown();
+    }
+
+    response.securityGroups += securityGroups.get();
+    response.membersAdded += added.get();
+    response.membersRemoved += removed.get();
+  }
+
+  // every batch writes to the same user node, so a deadlock between batches is retried
+  private SyncResponse runBatch(List<Long> batch, BatchWork work){
+    for (int attempt = 1; ; attempt++){
+      SyncResponse counts = new SyncResponse();
+      try (Transaction tx = db.beginTx()) {
+        work.apply(tx, batch, counts);
+        tx.commit();
+        return counts;
+      } catch (TransientFailureException e){
+        if (attempt == MAX_ATTEMPTS){
+          throw e;
+        }
+      }
+    }
+  }
+
+  // diffs the user's member edges on the SGs of the roles in scope
+  private void syncBaseNodes(Transaction tx, List<Long> batch, Long userNeoId, HashSet<String> rolesInScope, 
+    HashSet<RoleNames> expected, SyncResponse counts){
+
+    Node user = tx.getNodeById(userNeoId);
+    for (Long baseNodeNeoId: batch){
+      for (Relationship toBaseNode: tx.getNodeById(baseNodeNeoId).getRelationships(Direction.INCOMING, BASE_NODE)){
+        Node sg = toBaseNode.getStartNode();
+        String role = (String) sg.getProperty(AllProperties.role.name(), null);
+        if (!sg.hasLabel(SG_LABEL) || !rolesInScope.contains(role) || sg.hasRelationship(Direction.OUTGOING, MEMBER_GROUP)){
+          continue; // SGs with a membership group are covered by the group
+        }
+        counts.securityGroups++;
+        this.syncMember(sg, user, expected.contains(RoleNames.valueOf(role)), counts);
+      }
+    }
+  }
+
+  // adds or removes the member edge from a group or SG to the user, true if it changed
+  private Boolean syncMember(Node group, Node user, Boolean member, SyncResponse counts){
+    RelationshipType memberType = RelationshipType.withName(NonPropertyRelationshipTypes.member.name());
+
+    ArrayList<Relationship> existing = new ArrayList<>();
+    for (Relationship rel: group.getRelationships(Direction.OUTGOING, memberType)){
+      if (rel.getEndNodeId() == user.getId()){
+        existing.add(rel);
+      }
+    }
+
+    if (member && existing.isEmpty()){
+      group.createRelationshipTo(user, memberType);
+      counts.membersAdded++;
+      return true;
+    }
+    if (!member && !existing.isEmpty()){
+      existing.forEach(Relationship::delete);
+      counts.membersRemoved += existing.size();
+      return true;
+    }
+    // duplicates left by earlier non idempotent runs
+    for (int i = 1; i < existing.size(); i++){
+      existing.get(i).delete();
+      counts.membersRemoved++;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,100 @@
+package cord;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import cord.common.AllRoles;
+import cord.common.BaseNodeLabels;
+import cord.common.RoleNames;
+import cord.model.Perm;
+import cord.roles.BaseRole;
+
+// Role x label x property grants compiled once from the role classes in cord.roles.
+// Property ordinals are the ordinals of the label's cord.model enum, so every
+// grant check on the hot paths is an array lookup instead of a switch and a string parse.
+public class PermissionMatrix {
+
+  private static final PermissionMatrix instance = new PermissionMatrix(AllRoles.getInstance());
+
+  // [role ordinal][label ordinal][property ordinal], null for labels without a model
+  private final Perm[][][] grants;
+  private final List<List<String>> properties;
+  private final List<HashMap<String, Integer>> propertyOrdinals;
+
+  public static PermissionMatrix getInstance(){
+    return PermissionMatrix.instance;
+  }
+
+  private PermissionMatrix(AllRoles allRoles){
+    BaseNodeLabels[] labels = BaseNodeLabels.values();
+
+    this.grants = new Perm[RoleNames.values().length][labels.length][];
+    // indexed by label ordinal, null for labels without a model
+    this.properties = new ArrayList<>(Collections.nCopies(labels.length, null));
+    this.propertyOrdinals = new ArrayList<>(Collections.nCopies(labels.length, null));
+
+    for (BaseNodeLabels label: labels){
+      ArrayList<String> model = Utility.getBaseNodePropertiesByLabel(label);
+      if (model == null){
+        continue;
+      }
+
+      this.properties.set(label.ordinal(), Collections.unmodifiableList(model));
+      HashMap<String, Integer> ordinals = new HashMap<>();
+      this.propertyOrdinals.set(label.ordinal(), ordinals);
+      for (int i = 0; i < model.size(); i++){
+        ordinals.put(model.get(i), i);
+      }
+
+      for (BaseRole role: allRoles.allRolesList()){
+        Perm[] row = new Perm[model.size()];
+        for (int i = 0; i < model.size(); i++){
+          row[i] = role.permission.permission(label, model.get(i));
+        }
+        this.grants[role.roleName.ordinal()][label.ordinal()] = row;
+      }
+    }
+  }
+
+  public Perm get(RoleNames role, BaseNodeLabels label, int propertyOrdinal){
+    Perm[] row = this.grants[role.ordinal()][label.ordinal()];
+    if (row == null || propertyOrdinal < 0 || propertyOrdinal >= row.length){
+      return Perm.NO;
+    }
+    return row[propertyOrdinal];
+  }
+
+  // the role's grants on the label as bits by property ordinal, 64 per word. edit implies read.
+  public long[] getMask(RoleNames role, BaseNodeLabels label, Boolean edit){
+    Perm[] row = this.grants[role.ordinal()][label.ordinal()];
+    BitSet mask = new BitSet();
+    for (int i = 0; row != null && i < row.length; i++){
+      if (row[i] == Perm.RW || (!edit && row[i] == Perm.RO)){
+        mask.set(i);
+      }
+    }
+    return mask.toLongArray();
+  }
+
+  // unknown properties are never granted
+  public Perm get(RoleNames role, BaseNodeLabels label, String property){
+    return this.get(role, label, this.getPropertyOrdinal(label, property));
+  }
+
+  // the label's properties in ordinal order, or null if the label has no model
+  public List<String> getProperties(BaseNodeLabels label){
+    return this.properties.get(label.ordinal());
+  }
+
+  public int getPropertyOrdinal(BaseNodeLabels label, String property){
+    HashMap<String, Integer> ordinals = this.propertyOrdinals.get(label.ordinal());
+    if (ordinals == null || property == null){
+      return -1;
+    }
+    Integer ordinal = ordinals.get(property);
+    return ordinal == null ? -1 : ordinal;
+  }
+}
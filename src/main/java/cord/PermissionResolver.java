@@ -0,0 +1,452 @@
+package cord;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.logging.Log;
+
+import cord.cache.PermissionMasks;
+import cord.cache.ProjectMembers;
+import cord.cache.SecurityCaches;
+import cord.common.AllProperties;
+import cord.common.AllRoles;
+import cord.common.BaseNodeLabels;
+import cord.common.NonBaseNodeLabels;
+import cord.common.NonPropertyRelationshipTypes;
+import cord.common.PermissionStorage;
+import cord.common.RoleNames;
+import cord.model.Perm;
+import cord.roles.BaseRole;
+
+// Resolves a user's read and edit grants on every property of many base nodes
+// by walking baseNode <- SG -> member and SG -> permission (or template ->
+// permission) natively. A node is done as soon as every property is editable.
+// A virtual SG's grants are its role's row of the permission matrix.
+// A project context node whose SGs are all virtual or on templates is answered
+// from the user's cached masks for its project instead, as its grants then only
+// depend on the label and the user's global and project roles. SGs holding
+// their own Permission nodes or masks may have been edited, so those nodes are
+// always traversed. Id lists longer than one chunk are split over a
+// pool of daemon threads shared by every call, each worker with its own read
+// transaction. A caller with uncommitted writes is resolved in its own
+// transaction, as new ones wouldn't see the writes.
+public class PermissionResolver {
+
+  private static final int CHUNK_SIZE = 250;
+
+  // bounded by the cores, so concurrent calls queue for threads instead of each starting a pool
+  private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+    Runtime.getRuntime().availableProcessors(), runnable -> {
+      Thread thread = new Thread(runnable, "cord-permission-resolver");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+  private static final Label SG_LABEL = Label.label(NonBaseNodeLabels.SecurityGroup.name());
+  private static final RelationshipType BASE_NODE = RelationshipType.withName(NonPropertyRelationshipTypes.baseNode.name());
+  private static final RelationshipType MEMBER = RelationshipType.withName(NonPropertyRelationshipTypes.member.name());
+  private static final RelationshipType MEMBER_GROUP = RelationshipType.withName(NonPropertyRelationshipTypes.memberGroup.name());
+  private static final RelationshipType PERMISSION = RelationshipType.withName(NonPropertyRelationshipTypes.permission.name());
+  private static final RelationshipType TEMPLATE = RelationshipType.withName(NonPropertyRelationshipTypes.template.name());
+
+  private final GraphDatabaseService db;
+  private final Log log;
+  private final int parallelism;
+  private final PermissionMatrix matrix = PermissionMatrix.getInstance();
+  private final SecurityCaches caches;
+
+  public PermissionResolver(GraphDatabaseService db, Log log, long parallelism){
+    this.db = db;
+    this.log = log;
+    this.parallelism = (int) Math.max(1, parallelism);
+    this.caches = SecurityCaches.forDatabase(db.databaseName());
+  }
+
+  public static class NodePermissions {
+    public String baseNodeId;
+    // property -> {read, edit}, empty if the node wasn't found
+    public Map<String, Object> permissions;
+
+    public NodePermissions(String baseNodeId, Map<String, Object> permissions){
+      this.baseNodeId = baseNodeId;
+      this.permissions = permissions;
+    }
+  }
+
+  public List<NodePermissions> resolve(Transaction tx, String userId, List<String> baseNodeIds, String baseNodeLabel) throws RuntimeException {
+    BaseNodeLabels label = Utility.baseNodeClassStringToEnum(baseNodeLabel);
+    if (matrix.getProperties(label) == null){
+      throw new RuntimeException("no model for label " + label);
+    }
+
+    if (baseNodeIds.size() <= CHUNK_SIZE || this.parallelism == 1 || Utility.hasPendingChanges(tx)){
+      return this.resolveChunk(tx, userId, baseNodeIds, label);
+    }
+
+    // worker w resolves chunks w, w + workers, ... in one transaction
+    int chunkCount = (baseNodeIds.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    int workers = Math.min(this.parallelism, chunkCount);
+    List<List<NodePermissions>> chunkResults = new ArrayList<>(chunkCount);
+    for (int i = 0; i < chunkCount; i++){
+      chunkResults.add(null);
+    }
+
+    try {
+      List<Future<?>> running = new ArrayList<>();
+      for (int worker = 0; worker < workers; worker++){
+        final int first = worker;
+        running.add(EXECUTOR.submit(() -> {
+          try (Transaction chunkTx = db.beginTx()) {
+            for (int i = first; i < chunkCount; i += workers){
+              List<String> chunk = baseNodeIds.subList(i * CHUNK_SIZE, Math.min((i + 1) * CHUNK_SIZE, baseNodeIds.size()));
+              chunkResults.set(i, this.resolveChunk(chunkTx, userId, chunk, label));
+            }
+          }
+        }));
+      }
+      for (Future<?> worker: running){
+        worker.get();
+      }
+    } catch (Exception e){
+      e.printStackTrace();
+      this.log.error(e.getMessage());
+      throw new RuntimeException("error in resolving permissions of " + baseNodeIds.size() + " " + label + " nodes");
+    }
+
+    List<NodePermissions> results = new ArrayList<>(baseNodeIds.size());
+    for (List<NodePermissions> chunk: chunkResults){
+      results.addAll(chunk);
+    }
+    return results;
+  }
+
+  private List<NodePermissions> resolveChunk(Transaction tx, String userId, List<String> baseNodeIds, BaseNodeLabels label){
+    Node user = tx.findNode(Label.label(BaseNodeLabels.User.name()), AllProperties.id.name(), userId);
+    if (user == null){
+      throw new RuntimeException("user not found: " + userId);
+    }
+
+    List<String> model = matrix.getProperties(label);
+    Label baseNodeLabel = Label.label(label.name());
+    // membership of shared groups and grants of templates, the same for every node
+    HashMap<Long, Boolean> groupMembership = new HashMap<>();
+    HashMap<Long, boolean[]> templateGrants = new HashMap<>();
+    int globalRoles = this.getGlobalRoles(user);
+    Boolean useMasks = !Utility.hasPendingChanges(tx);
+
+    List<NodePermissions> results = new ArrayList<>(baseNodeIds.size());
+    for (String baseNodeId: baseNodeIds){
+      Node baseNode = tx.findNode(baseNodeLabel, AllProperties.id.name(), baseNodeId);
+      if (baseNode == null){
+        results.add(new NodePermissions(baseNodeId, new LinkedHashMap<>()));
+        continue;
+      }
+
+      // [2 * ordinal] read, [2 * ordinal + 1] edit
+      PermissionMasks masks = useMasks ? this.getProjectMasks(tx, user, globalRoles, baseNode, label) : null;
+      boolean[] grants = masks != null 
+        ? this.getGrants(masks, label, model) 
+        : this.traverseGrants(baseNode, user, label, model, groupMembership, templateGrants);
+
+      results.add(new NodePermissions(baseNodeId, this.toPermissions(grants, model)));
+    }
+    return results;
+  }
+
+  private boolean[] traverseGrants(Node baseNode, Node user, BaseNodeLabels label, List<String> model,
+    HashMap<Long, Boolean> groupMembership, HashMap<Long, boolean[]> templateGrants){
+
+    boolean[] grants = new boolean[model.size() * 2];
+    int missing = grants.length;
+
+    for (Relationship toBaseNode: baseNode.getRelationships(Direction.INCOMING, BASE_NODE)){
+      Node sg = toBaseNode.getStartNode();
+      if (!sg.hasLabel(SG_LABEL) || !this.isMember(sg, user, groupMembership)){
+        continue;
+      }
+
+      missing -= this.grant(grants, this.getGrants(sg, label, model));
+      for (Relationship toTemplate: sg.getRelationships(Direction.OUTGOING, TEMPLATE)){
+        boolean[] template = templateGrants.computeIfAbsent(toTemplate.getEndNodeId(),
+          templateNeoId -> this.getGrants(toTemplate.getEndNode(), label, model));
+        missing -= this.grant(grants, template);
+      }
+
+      if (missing == 0){
+        break; // everything is editable, the other SGs can't add anything
+      }
+    }
+    return grants;
+  }
+
+  private boolean[] getGrants(PermissionMasks masks, BaseNodeLabels label, List<String> model){
+    boolean[] grants = new boolean[model.size() * 2];
+    for (int i = 0; i < model.size(); i++){
+      grants[2 * i] = masks.canRead(label, i);
+      grants[2 * i + 1] = masks.canEdit(label, i);
+    }
+    return grants;
+  }
+
+  // the nodes, in their order, on which the user can read the property. an SG's
+  // grant is checked before its membership, and a node stops at its first readable SG.
+  public List<Node> filterReadable(Transaction tx, String userId, List<Node> nodes, String property){
+    List<Node> readable = new ArrayList<>();
+    Node user = userId == null ? null : tx.findNode(Label.label(BaseNodeLabels.User.name()), AllProperties.id.name(), userId);
+    if (user == null || nodes == null){
+      return readable;
+    }
+
+    HashMap<Long, Boolean> groupMembership = new HashMap<>();
+    HashMap<Long, boolean[]> templateGrants = new HashMap<>();
+    int globalRoles = this.getGlobalRoles(user);
+    Boolean useMasks = !Utility.hasPendingChanges(tx);
+
+    for (Node node: nodes){
+      BaseNodeLabels label = node == null ? null : Utility.getBaseNodeLabel(node);
+      int ordinal = label == null ? -1 : matrix.getPropertyOrdinal(label, property);
+      if (ordinal == -1){
+        continue;
+      }
+
+      PermissionMasks masks = useMasks ? this.getProjectMasks(tx, user, globalRoles, node, label) : null;
+      if (masks != null){
+        if (masks.canRead(label, ordinal)){
+          readable.add(node);
+        }
+        continue;
+      }
+
+      for (Relationship toBaseNode: node.getRelationships(Direction.INCOMING, BASE_NODE)){
+        Node sg = toBaseNode.getStartNode();
+        if (sg.hasLabel(SG_LABEL) && this.grantsRead(sg, label, ordinal, property, templateGrants) 
+          && this.isMember(sg, user, groupMembership)){
+          readable.add(node);
+          break;
+        }
+      }
+    }
+    return readable;
+  }
+
+  private Boolean grantsRead(Node sg, BaseNodeLabels label, int ordinal, String property, HashMap<Long, boolean[]> templateGrants){
+    RoleNames virtualRole = this.getVirtualRole(sg);
+    if (virtualRole != null && matrix.get(virtualRole, label, ordinal) != Perm.NO){
+      return true;
+    }
+    Object readMask = sg.getProperty(AllProperties.readMask.name(), null);
+    if (readMask instanceof long[] && BitSet.valueOf((long[]) readMask).get(ordinal)){
+      return true;
+    }
+    for (Relationship toPerm: sg.getRelationships(Direction.OUTGOING, PERMISSION)){
+      Node perm = toPerm.getEndNode();
+      if (property.equals(perm.getProperty(AllProperties.property.name(), null)) 
+        && Boolean.TRUE.equals(perm.getProperty(AllProperties.read.name(), false))){
+        return true;
+      }
+    }
+    List<String> model = matrix.getProperties(label);
+    for (Relationship toTemplate: sg.getRelationships(Direction.OUTGOING, TEMPLATE)){
+      boolean[] template = templateGrants.computeIfAbsent(toTemplate.getEndNodeId(),
+        templateNeoId -> this.getGrants(toTemplate.getEndNode(), label, model));
+      if (template[2 * ordinal]){
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // null unless the node is a project context node with a project, secured by role grants only
+  private PermissionMasks getProjectMasks(Transaction tx, Node user, int globalRoles, Node baseNode, BaseNodeLabels label){
+    if (!Utility.isProjectContextNode(label) || !this.hasRoleGrantsOnly(baseNode)){
+      return null;
+    }
+    Long projectNeoId = Utility.getProjectNode(tx, baseNode.getId(), label, this.caches.projectNodes);
+    if (projectNeoId == null){
+      return null;
+    }
+
+    SecurityCaches.UserProject key = new SecurityCaches.UserProject(user.getId(), projectNeoId);
+    PermissionMasks masks = this.caches.projectMasks.get(key);
+    if (masks != null){
+      return masks;
+    }
+
+    long stamp = this.caches.projectMasks.stamp();
+    ProjectMembers members = this.caches.projectMembers.get(projectNeoId);
+    if (members == null){
+      long membersStamp = this.caches.projectMembers.stamp();
+      members = Utility.resolveProjectMembers(tx, projectNeoId);
+      this.caches.projectMembers.put(projectNeoId, members, membersStamp);
+    }
+
+    masks = PermissionMasks.forRoles(globalRoles | members.getRoles(user.getId()));
+    this.caches.projectMasks.put(key, masks, stamp);
+    return masks;
+  }
+
+  // true if the node has SGs and each is virtual or on a template, so grants follow the role
+  private Boolean hasRoleGrantsOnly(Node baseNode){
+    Boolean secured = false;
+    for (Relationship toBaseNode: baseNode.getRelationships(Direction.INCOMING, BASE_NODE)){
+      Node node = toBaseNode.getStartNode();
+      if (!node.hasLabel(SG_LABEL)){
+        return false; // a Permission node, so node storage
+      }
+      Object storage = node.getProperty(AllProperties.storage.name(), null);
+      if (!PermissionStorage.virtual.name().equals(storage) && !PermissionStorage.template.name().equals(storage)){
+        return false;
+      }
+      secured = true;
+    }
+    return secured;
+  }
+
+  private int getGlobalRoles(Node user){
+    List<String> feRoles = Utility.getActiveRoles(user);
+    int roles = 0;
+    for (BaseRole role: AllRoles.getInstance().globalRolesList()){
+      if (feRoles.contains(AllRoles.getFrontendRoleNameFromApiRoleName(role.roleName))){
+        roles |= ProjectMembers.roleBit(role.roleName);
+      }
+    }
+    return roles;
+  }
+
+  // {property: {read, edit}} of an SG, labelled by its base node or else its template
+  public Map<String, Object> getSecurityGroupPermissions(Node sg){
+    BaseNodeLabels label = null;
+    Relationship toBaseNode = sg.getSingleRelationship(BASE_NODE, Direction.OUTGOING);
+    if (toBaseNode != null){
+      label = Utility.getBaseNodeLabel(toBaseNode.getEndNode());
+    } else {
+      for (Relationship toTemplate: sg.getRelationships(Direction.OUTGOING, TEMPLATE)){
+        label = Utility.baseNodeClassStringToEnum((String) toTemplate.getEndNode().getProperty(AllProperties.label.name()));
+      }
+    }
+    if (label == null || matrix.getProperties(label) == null){
+      return new LinkedHashMap<>();
+    }
+    return this.toPermissions(this.getSecurityGroupGrants(sg, label), matrix.getProperties(label));
+  }
+
+  private Map<String, Object> toPermissions(boolean[] grants, List<String> model){
+    Map<String, Object> permissions = new LinkedHashMap<>();
+    for (int i = 0; i < model.size(); i++){
+      Map<String, Object> permission = new LinkedHashMap<>();
+      permission.put(AllProperties.read.name(), grants[2 * i]);
+      permission.put(AllProperties.edit.name(), grants[2 * i + 1]);
+      permissions.put(model.get(i), permission);
+    }
+    return permissions;
+  }
+
+  // the grants of an SG in any storage: its masks, its Permission nodes and its templates
+  public boolean[] getSecurityGroupGrants(Node sg, BaseNodeLabels label){
+    List<String> model = matrix.getProperties(label);
+    boolean[] grants = this.getGrants(sg, label, model);
+    for (Relationship toTemplate: sg.getRelationships(Direction.OUTGOING, TEMPLATE)){
+      this.grant(grants, this.getGrants(toTemplate.getEndNode(), label, model));
+    }
+    return grants;
+  }
+
+  // the grants behind the node's masks and permission relationships, an SG or a template
+  private boolean[] getGrants(Node node, BaseNodeLabels label, List<String> model){
+    boolean[] grants = new boolean[model.size() * 2];
+    RoleNames virtualRole = this.getVirtualRole(node);
+    if (virtualRole != null){
+      for (int i = 0; i < model.size(); i++){
+        Perm perm = matrix.get(virtualRole, label, i);
+        grants[2 * i] = perm != Perm.NO;
+        grants[2 * i + 1] = perm == Perm.RW;
+      }
+    }
+    for (int edit = 0; edit < 2; edit++){
+      Object mask = node.getProperty(edit == 0 ? AllProperties.readMask.name() : AllProperties.editMask.name(), null);
+      if (mask instanceof long[]){
+        BitSet bits = BitSet.valueOf((long[]) mask);
+        for (int ordinal = bits.nextSetBit(0); ordinal >= 0 && ordinal < model.size(); ordinal = bits.nextSetBit(ordinal + 1)){
+          grants[2 * ordinal + edit] = true;
+        }
+      }
+    }
+    for (Relationship toPerm: node.getRelationships(Direction.OUTGOING, PERMISSION)){
+      Node perm = toPerm.getEndNode();
+      int ordinal = matrix.getPropertyOrdinal(label, (String) perm.getProperty(AllProperties.property.name(), null));
+      if (ordinal == -1){
+        continue;
+      }
+      if (Boolean.TRUE.equals(perm.getProperty(AllProperties.read.name(), false))){
+        grants[2 * ordinal] = true;
+      }
+      if (Boolean.TRUE.equals(perm.getProperty(AllProperties.edit.name(), false))){
+        grants[2 * ordinal + 1] = true;
+      }
+    }
+    return grants;
+  }
+
+  // the role of an SG in virtual storage, null for every other layout or an unknown role
+  private RoleNames getVirtualRole(Node sg){
+    if (!PermissionStorage.virtual.name().equals(sg.getProperty(AllProperties.storage.name(), null))){
+      return null;
+    }
+    try {
+      return RoleNames.valueOf((String) sg.getProperty(AllProperties.role.name(), null));
+    } catch (IllegalArgumentException | NullPointerException e){
+      return null;
+    }
+  }
+
+  // ors the grants in, returns how many were new
+  private int grant(boolean[] grants, boolean[] granted){
+    int added = 0;
+    for (int i = 0; i < grants.length; i++){
+      if (granted[i] && !grants[i]){
+        grants[i] = true;
+        added++;
+      }
+    }
+    return added;
+  }
+
+  // directly or through one of the SG's membership groups
+  private Boolean isMember(Node sg, Node user, HashMap<Long, Boolean> groupMembership){
+    if (this.hasMember(sg, user)){
+      return true;
+    }
+    for (Relationship toGroup: sg.getRelationships(Direction.OUTGOING, MEMBER_GROUP)){
+      if (groupMembership.computeIfAbsent(toGroup.getEndNodeId(), groupNeoId -> this.hasMember(toGroup.getEndNode(), user))){
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // walks the member edges from whichever end has fewer of them
+  private Boolean hasMember(Node group, Node user){
+    if (group.getDegree(MEMBER, Direction.OUTGOING) <= user.getDegree(MEMBER, Direction.INCOMING)){
+      for (Relationship rel: group.getRelationships(Direction.OUTGOING, MEMBER)){
+        if (rel.getEndNodeId() == user.getId()){
+          return true;
+        }
+      }
+    } else {
+      for (Relationship rel: user.getRelationships(Direction.INCOMING, MEMBER)){
+        if (rel.getStartNodeId() == group.getId()){
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+}
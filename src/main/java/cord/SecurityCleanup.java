@@ -0,0 +1,178 @@
+package cord;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.logging.Log;
+
+import cord.common.AllProperties;
+import cord.common.BaseNodeLabels;
+import cord.common.NonBaseNodeLabels;
+import cord.common.NonPropertyRelationshipTypes;
+
+// Removes the security of deleted base nodes: their SGs, their own Permission
+// nodes and every relationship of those. Deletes are committed in batches of at
+// most batchSize relationships, so the User nodes on the far end of the member
+// edges are only locked briefly. Shared permission templates and membership
+// groups lose the SG's edge but are kept.
+public class SecurityCleanup {
+
+  private static final Label SG_LABEL = Label.label(NonBaseNodeLabels.SecurityGroup.name());
+  private static final Label PERMISSION_LABEL = Label.label(NonBaseNodeLabels.Permission.name());
+  private static final Label TEMPLATE_LABEL = Label.label(NonBaseNodeLabels.PermissionTemplate.name());
+  private static final RelationshipType BASE_NODE = RelationshipType.withName(NonPropertyRelationshipTypes.baseNode.name());
+  private static final RelationshipType PERMISSION = RelationshipType.withName(NonPropertyRelationshipTypes.permission.name());
+
+  private final GraphDatabaseService db;
+  private final Log log;
+  private final int batchSize;
+
+  public SecurityCleanup(GraphDatabaseService db, Log log, long batchSize){
+    this.db = db;
+    this.log = log;
+    this.batchSize = (int) Math.max(1, batchSize);
+  }
+
+  public static class CleanupResponse {
+    public Long baseNodes = 0L;
+    public Long securityGroups = 0L;
+    public Long permissionNodes = 0L;
+    public Long relationships = 0L;
+  }
+
+  // the security of base nodes that still exist, to run before or instead of deleting them
+  public CleanupResponse deleteForBaseNodes(List<String> baseNodeIds) throws RuntimeException {
+    CleanupResponse response = new CleanupResponse();
+    LinkedHashSet<Long> securityNodes = new LinkedHashSet<>();
+
+    try (Transaction tx = db.beginTx()) {
+      for (String baseNodeId: baseNodeIds){
+        try (ResourceIterator<Node> baseNodes = tx.findNodes(
+          Label.label(BaseNodeLabels.BaseNode.name()), AllProperties.id.name(), baseNodeId)) {
+
+          while (baseNodes.hasNext()){
+            for (Relationship toBaseNode: baseNodes.next().getRelationships(Direction.INCOMING, BASE_NODE)){
+              Node node = toBaseNode.getStartNode();
+              if (node.hasLabel(SG_LABEL) || node.hasLabel(PERMISSION_LABEL)){
+                securityNodes.add(node.getId());
+              }
+            }
+            response.baseNodes++;
+          }
+        }
+      }
+      tx.commit();
+    } catch (Exception e){
+      e.printStackTrace();
+      this.log.error(e.getMessage());
+      throw new RuntimeException("error in finding the security of " + baseNodeIds.size() + " base nodes");
+    }
+
+    this.deleteSecurityNodes(new ArrayList<>(securityNodes), response, false);
+    return response;
+  }
+
+  // SGs and Permission nodes whose base node is gone. Permission nodes of a template never had one.
+  public CleanupResponse deleteOrphans() throws RuntimeException {
+    CleanupResponse response = new CleanupResponse();
+    ArrayList<Long> orphans = new ArrayList<>();
+
+    try (Transaction tx = db.beginTx()) {
+      try (ResourceIterator<Node> sgs = tx.findNodes(SG_LABEL)) {
+        sgs.forEachRemaining(sg -> {
+          if (!sg.hasRelationship(Direction.OUTGOING, BASE_NODE)){
+            orphans.add(sg.getId());
+          }
+        });
+      }
+      try (ResourceIterator<Node> perms = tx.findNodes(PERMISSION_LABEL)) {
+        perms.forEachRemaining(perm -> {
+          if (!perm.hasRelationship(Direction.OUTGOING, BASE_NODE) && !this.isTemplatePermission(perm)){
+            orphans.add(perm.getId());
+          }
+        });
+      }
+      tx.commit();
+    } catch (Exception e){
+      e.printStackTrace();
+      this.log.error(e.getMessage());
+      throw new RuntimeException("error in finding orphaned security");
+    }
+
+    this.deleteSecurityNodes(orphans, response, true);
+    return response;
+  }
+
+  private Boolean isTemplatePermission(Node perm){
+    for (Relationship toPerm: perm.getRelationships(Direction.INCOMING, PERMISSION)){
+      if (toPerm.getStartNode().hasLabel(TEMPLATE_LABEL)){
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // a node with more relationships than fit in a batch is finished in the next one.
+  // orphan ids were collected in an earlier transaction, and a concurrent sweep may
+  // have freed one that a new SG now reuses, so each is checked again under its lock
+  public void deleteSecurityNodes(List<Long> nodes, CleanupResponse response, Boolean orphansOnly) throws RuntimeException {
+    int next = 0;
+    while (next < nodes.size()){
+      try (Transaction tx = db.beginTx()) {
+        int budget = this.batchSize;
+
+        while (next < nodes.size() && budget > 0){
+          Node node;
+          try {
+            node = tx.getNodeById(nodes.get(next));
+          } catch (NotFoundException e){
+            next++;
+            continue; // already gone
+          }
+          // only ever SGs and Permission nodes, whatever the caller passed
+          if (!node.hasLabel(SG_LABEL) && !node.hasLabel(PERMISSION_LABEL)){
+            next++;
+            continue;
+          }
+          if (orphansOnly){
+            tx.acquireWriteLock(node);
+            if (node.hasRelationship(Direction.OUTGOING, BASE_NODE) || this.isTemplatePermission(node)){
+              next++;
+              continue; // in use again
+            }
+          }
+
+          ArrayList<Relationship> rels = new ArrayList<>();
+          for (Relationship rel: node.getRelationships()){
+            if (rels.size() == budget){
+              break;
+            }
+            rels.add(rel);
+          }
+          rels.forEach(Relationship::delete);
+          response.relationships += rels.size();
+          budget -= rels.size();
+
+          if (budget > 0){
+            if (node.hasLabel(SG_LABEL)){
+              response.securityGroups++;
+            } else {
+              response.permissionNodes++;
+            }
+            node.delete();
+            budget--;
+            next++;
+          }
+        }
+
+        tx.commit();
+      } catch (Exception e){
+        e.printStackTrace();
+        this.log.error(e.getMessage());
+        throw new RuntimeException("error in deleting security nodes, " + (nodes.size() - next) + " left");
+      }
+    }
+  }
+}
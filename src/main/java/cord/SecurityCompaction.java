@@ -0,0 +1,219 @@
+package cord;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.logging.Log;
+
+import cord.common.AllProperties;
+import cord.common.NonBaseNodeLabels;
+import cord.common.NonPropertyRelationshipTypes;
+
+// Shrinks the security left by repeated, non idempotent processing. Per base
+// node, SGs of the same role are merged into the oldest one, Permission nodes
+// for the same property and grant are merged the same way, and parallel edges
+// out of the remaining SGs are dropped. Base nodes are compacted in parallel
+// batches, then SGs and Permission nodes without a base node are deleted.
+public class SecurityCompaction {
+
+  private static final int MAX_ATTEMPTS = 3;
+
+  private static final Label SG_LABEL = Label.label(NonBaseNodeLabels.SecurityGroup.name());
+  private static final Label PERMISSION_LABEL = Label.label(NonBaseNodeLabels.Permission.name());
+  private static final RelationshipType BASE_NODE = RelationshipType.withName(NonPropertyRelationshipTypes.baseNode.name());
+
+  private final GraphDatabaseService db;
+  private final Log log;
+  private final int batchSize;
+  private final int parallelism;
+
+  public SecurityCompaction(GraphDatabaseService db, Log log, long batchSize, long parallelism){
+    this.db = db;
+    this.log = log;
+    this.batchSize = (int) Math.max(1, batchSize);
+    this.parallelism = (int) Math.max(1, parallelism);
+  }
+
+  public static class CompactionResponse {
+    public Long baseNodes = 0L;
+    public Long securityGroupsMerged = 0L;
+    public Long permissionNodesMerged = 0L;
+    public Long duplicateEdges = 0L;
+    public Long orphanedSecurityGroups = 0L;
+    public Long orphanedPermissionNodes = 0L;
+    // nodes and relationships deleted
+    public Long recordsReclaimed = 0L;
+
+    synchronized void add(CompactionResponse counts){
+      this.baseNodes += counts.baseNodes;
+      this.securityGroupsMerged += counts.securityGroupsMerged;
+      this.permissionNodesMerged += counts.permissionNodesMerged;
+      this.duplicateEdges += counts.duplicateEdges;
+      this.recordsReclaimed += counts.recordsReclaimed;
+    }
+  }
+
+  public CompactionResponse compact() throws RuntimeException {
+    CompactionResponse response = new CompactionResponse();
+
+    // every base node that has an SG, the merge candidates
+    List<Long> baseNodes = new ArrayList<>();
+    try (Transaction tx = db.beginTx()) {
+      HashSet<Long> seen = new HashSet<>();
+      try (ResourceIterator<Node> sgs = tx.findNodes(SG_LABEL)) {
+        sgs.forEachRemaining(sg -> {
+          for (Relationship toBaseNode: sg.getRelationships(Direction.OUTGOING, BASE_NODE)){
+            if (seen.add(toBaseNode.getEndNodeId())){
+              baseNodes.add(toBaseNode.getEndNodeId());
+            }
+          }
+        });
+      }
+      tx.commit();
+    } catch (Exception e){
+      e.printStackTrace();
+      this.log.error(e.getMessage());
+      throw new RuntimeException("error in finding base nodes to compact");
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(this.parallelism);
+    try {
+      List<Future<?>> batches = new ArrayList<>();
+      for (int start = 0; start < baseNodes.size(); start += this.batchSize){
+        List<Long> batch = baseNodes.subList(start, Math.min(start + this.batchSize, baseNodes.size()));
+        batches.add(executor.submit(() -> response.add(this.compactBatch(batch))));
+      }
+      for (Future<?> batch: batches){
+        batch.get();
+      }
+    } catch (Exception e){
+      e.printStackTrace();
+      this.log.error(e.getMessage());
+      throw new RuntimeException("error in compacting the security of " + baseNodes.size() + " base nodes");
+    } finally {
+      executor.shutdown();
+    }
+
+    SecurityCleanup.CleanupResponse orphans = new SecurityCleanup(db, log, this.batchSize).deleteOrphans();
+    response.orphanedSecurityGroups = orphans.securityGroups;
+    response.orphanedPermissionNodes = orphans.permissionNodes;
+    response.recordsReclaimed += orphans.securityGroups + orphans.permissionNodes + orphans.relationships;
+
+    return response;
+  }
+
+  // batches share users through member edges, so a deadlock between them is retried
+  private CompactionResponse compactBatch(List<Long> batch){
+    for (int attempt = 1; ; attempt++){
+      CompactionResponse counts = new CompactionResponse();
+      try (Transaction tx = db.beginTx()) {
+        for (Long baseNodeNeoId: batch){
+          Node baseNode;
+          try {
+            baseNode = tx.getNodeById(baseNodeNeoId);
+          } catch (NotFoundException e){
+            continue;
+          }
+          this.compactBaseNode(baseNode, counts);
+          counts.baseNodes++;
+        }
+        tx.commit();
+        return counts;
+      } catch (TransientFailureException e){
+        if (attempt == MAX_ATTEMPTS){
+          throw e;
+        }
+      }
+    }
+  }
+
+  private void compactBaseNode(Node baseNode, CompactionResponse counts){
+    HashMap<String, ArrayList<Node>> sgsByRole = new HashMap<>();
+    HashMap<String, ArrayList<Node>> permsByGrant = new HashMap<>();
+    HashSet<Long> seen = new HashSet<>();
+
+    for (Relationship toBaseNode: baseNode.getRelationships(Direction.INCOMING, BASE_NODE)){
+      Node node = toBaseNode.getStartNode();
+      if (!seen.add(node.getId())){
+        continue;
+      }
+      if (node.hasLabel(SG_LABEL)){
+        // an SG without a role is left alone
+        Object role = node.getProperty(AllProperties.role.name(), node.getId());
+        sgsByRole.computeIfAbsent(role.toString(), key -> new ArrayList<>()).add(node);
+      } else if (node.hasLabel(PERMISSION_LABEL)){
+        String grant = node.getProperty(AllProperties.property.name(), "") + ":" + node.hasProperty(AllProperties.edit.name());
+        permsByGrant.computeIfAbsent(grant, key -> new ArrayList<>()).add(node);
+      }
+    }
+
+    // the oldest node of a group stays, the newer ones are folded into it
+    ArrayList<Node> sgs = new ArrayList<>();
+    for (ArrayList<Node> group: sgsByRole.values()){
+      group.sort(Comparator.comparingLong(Node::getId));
+      for (int i = 1; i < group.size(); i++){
+        this.mergeInto(group.get(i), group.get(0), Direction.OUTGOING, counts);
+        counts.securityGroupsMerged++;
+      }
+      sgs.add(group.get(0));
+    }
+    for (ArrayList<Node> group: permsByGrant.values()){
+      group.sort(Comparator.comparingLong(Node::getId));
+      for (int i = 1; i < group.size(); i++){
+        this.mergeInto(group.get(i), group.get(0), Direction.INCOMING, counts);
+        counts.permissionNodesMerged++;
+      }
+    }
+
+    for (Node sg: sgs){
+      this.deleteParallelEdges(sg, counts);
+    }
+  }
+
+  // moves the relationships of one direction onto the kept node, then deletes the merged one
+  private void mergeInto(Node merged, Node kept, Direction direction, CompactionResponse counts){
+    HashSet<String> existing = new HashSet<>();
+    for (Relationship rel: kept.getRelationships(direction)){
+      existing.add(rel.getType().name() + ":" + rel.getOtherNodeId(kept.getId()));
+    }
+
+    ArrayList<Relationship> rels = new ArrayList<>();
+    merged.getRelationships().forEach(rels::add);
+    for (Relationship rel: rels){
+      long other = rel.getOtherNodeId(merged.getId());
+      Boolean moved = rel.getStartNodeId() == merged.getId() ? direction == Direction.OUTGOING : direction == Direction.INCOMING;
+      if (moved && other != kept.getId() && existing.add(rel.getType().name() + ":" + other)){
+        if (direction == Direction.OUTGOING){
+          kept.createRelationshipTo(rel.getEndNode(), rel.getType());
+        } else {
+          rel.getStartNode().createRelationshipTo(kept, rel.getType());
+        }
+      } else {
+        counts.recordsReclaimed++;
+      }
+      rel.delete();
+    }
+    merged.delete();
+    counts.recordsReclaimed++;
+  }
+
+  private void deleteParallelEdges(Node sg, CompactionResponse counts){
+    HashSet<String> seen = new HashSet<>();
+    ArrayList<Relationship> rels = new ArrayList<>();
+    sg.getRelationships(Direction.OUTGOING).forEach(rels::add);
+    for (Relationship rel: rels){
+      if (!seen.add(rel.getType().name() + ":" + rel.getEndNodeId())){
+        rel.delete();
+        counts.duplicateEdges++;
+        counts.recordsReclaimed++;
+      }
+    }
+  }
+}
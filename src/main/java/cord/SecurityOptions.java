@@ -0,0 +1,50 @@
+package cord;
+
+import java.util.Map;
+
+import cord.common.MembershipStorage;
+import cord.common.PermissionStorage;
+
+// Options accepted by the processing procedures as an optional map argument.
+public class SecurityOptions {
+
+  public PermissionStorage permissionStorage = PermissionStorage.node;
+  public MembershipStorage membership = MembershipStorage.direct;
+  // reuse the SGs, Permission nodes and member edges a node already has instead of adding more
+  public Boolean idempotent = false;
+
+  public static SecurityOptions fromMap(Map<String, Object> map) throws RuntimeException {
+    SecurityOptions options = new SecurityOptions();
+    if (map == null){
+      return options;
+    }
+
+    Object permissionStorage = map.get("permissionStorage");
+    if (permissionStorage != null){
+      try {
+        options.permissionStorage = PermissionStorage.valueOf(permissionStorage.toString());
+      } catch (IllegalArgumentException e){
+        throw new RuntimeException("unknown permissionStorage: " + permissionStorage);
+      }
+    }
+
+    Object membership = map.get("membership");
+    if (membership != null){
+      try {
+        options.membership = MembershipStorage.valueOf(membership.toString());
+      } catch (IllegalArgumentException e){
+        throw new RuntimeException("unknown membership: " + membership);
+      }
+    }
+
+    Object idempotent = map.get("idempotent");
+    if (idempotent != null){
+      if (!(idempotent instanceof Boolean)){
+        throw new RuntimeException("idempotent must be a boolean: " + idempotent);
+      }
+      options.idempotent = (Boolean) idempotent;
+    }
+
+    return options;
+  }
+}
@@ -0,0 +1,656 @@
+package cord;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.logging.Log;
+import org.neo4j.values.storable.Values;
+
+import cord.cache.ProjectMembers;
+import cord.cache.SecurityCaches;
+import cord.common.AllProperties;
+import cord.common.AllRoles;
+import cord.common.BaseNodeLabels;
+import cord.common.MembershipStorage;
+import cord.common.NonBaseNodeLabels;
+import cord.common.NonPropertyRelationshipTypes;
+import cord.common.PermissionStorage;
+import cord.common.RoleNames;
+import cord.model.Perm;
+import cord.roles.*;
+
+// Materializes security for base nodes inside a single transaction.
+// One processor is shared by every node of a batch, so role objects, global
+// role users and project members are only resolved once per batch.
+public class SecurityProcessor implements AutoCloseable {
+
+  private final Transaction tx;
+  private final Log log;
+  private final SecurityOptions options;
+  private final SecurityCaches caches;
+  // caches hold committed state, so they are skipped if the caller already wrote in this transaction
+  private final Boolean useCaches;
+  private final AllRoles allRoles;
+  private final PermissionMatrix matrix;
+  private final SecurityWriter writer;
+
+  // global role users are shared by every SG of the batch
+  private final HashMap<RoleNames, long[]> globalRoleUsers = new HashMap<>();
+  // project node neo id -> project role -> user node neo ids
+  private final HashMap<Long, HashMap<RoleNames, ArrayList<Long>>> projectMembers = new HashMap<>();
+  // SGs created by this processor have no members yet, so no duplicate checks are needed
+  private final HashSet<Long> createdSgs = new HashSet<>();
+  // SG neo id -> user neo ids this processor made members, for the SGs of the base
+  // node being processed. a role that is both global and project, or a creator
+  // who is also an admin, reaches the same SG twice
+  private final HashMap<Long, HashSet<Long>> sgMembers = new HashMap<>();
+  // template key -> PermissionTemplate node neo id
+  private final HashMap<String, Long> templates = new HashMap<>();
+  // membership group key -> MembershipGroup node neo id
+  private final HashMap<String, Long> membershipGroups = new HashMap<>();
+
+  public SecurityProcessor(Transaction tx, Log log){
+    this(tx, log, new SecurityOptions(), null);
+  }
+
+  public SecurityProcessor(Transaction tx, Log log, SecurityOptions options){
+    this(tx, log, options, null);
+  }
+
+  // caches may be null, in which case everything is read from the graph
+  public SecurityProcessor(Transaction tx, Log log, SecurityOptions options, SecurityCaches caches){
+    this.tx = tx;
+    this.log = log;
+    this.options = options;
+    this.caches = caches;
+    this.useCaches = caches != null && !Utility.hasPendingChanges(tx);
+    this.allRoles = AllRoles.getInstance();
+    this.matrix = PermissionMatrix.getInstance();
+    this.writer = new SecurityWriter(tx);
+  }
+
+  @Override
+  public void close(){
+    this.writer.close();
+  }
+
+  public void processBaseNode(String baseNodeId, String baseNodeLabel, String creatorUserId) throws RuntimeException {
+
+    Long baseNodeNeoId = Utility.getNode(tx, baseNodeId, baseNodeLabel);
+
+    // get the base node's labels and model
+    BaseNodeLabels label = Utility.baseNodeClassStringToEnum(baseNodeLabel);
+    this.processBaseNode(baseNodeNeoId, label, creatorUserId);
+  }
+
+  // for callers that already hold the base node, such as a bulk rebuild
+  public void processBaseNode(Long baseNodeNeoId, BaseNodeLabels label, String creatorUserId) throws RuntimeException {
+
+    List<String> model = matrix.getProperties(label);
+    this.sgMembers.clear();
+
+    // the node's SGs and Permission nodes from earlier runs, read in one pass
+    ExistingSecurity existing = this.getExistingSecurity(baseNodeNeoId, label);
+
+    // create permission nodes for each property, unless the SGs share a template
+    long[] perms = null;
+    if (options.permissionStorage == PermissionStorage.node){
+      perms = options.idempotent 
+        ? this.createMissingPermissionNodes(baseNodeNeoId, label, model, existing.perms)
+        : this.createAllPermissionNodes(baseNodeNeoId, label, model);
+    }
+
+    // create SGs for all the global roles
+    HashMap<RoleNames, Long> sgMap = new HashMap<RoleNames, Long>();
+
+    for (BaseRole role: allRoles.globalRolesList()){
+      Long sgNodeNeoId = this.mergeSecurityGroupForRole(role, existing, baseNodeNeoId, label, model, perms);
+      sgMap.put(role.roleName, sgNodeNeoId);
+
+      // global role users
+      if (options.membership == MembershipStorage.shared){
+        this.linkMembershipGroup(sgNodeNeoId, this.getGlobalMembershipGroup(role, label));
+      } else {
+        this.addRoleMembersToSg(role, sgNodeNeoId);
+      }
+    }
+
+    // determine if the creator should be added to the admin group for this node
+    // and if to create project role SGs
+    Boolean isProjectContextNode = Utility.isProjectContextNode(label);
+
+    if (isProjectContextNode) {
+
+      // get project members
+      Long projectNodeNeoId = Utility.getProjectNode(tx, baseNodeNeoId, label, 
+        this.caches == null ? null : this.caches.projectNodes);
+      if (projectNodeNeoId == null){
+        this.log.error("project id not found. skipping adding project members to new node. baseNodeNeoId: " + baseNodeNeoId + " label: " + label);
+      } else {
+
+        for (BaseRole role: allRoles.projectRolesList()){
+          Long sgNodeNeoId = this.mergeSecurityGroupForRole(role, existing, baseNodeNeoId, label, model, perms);
+          sgMap.put(role.roleName, sgNodeNeoId);
+        }
+
+        if (options.membership == MembershipStorage.shared){
+          this.linkProjectMembershipGroups(projectNodeNeoId, sgMap);
+        } else {
+          this.processProjectMembers(this.getProjectMemberRoles(projectNodeNeoId), sgMap);
+        }
+      }
+
+    } else if (creatorUserId != null) {
+
+      // add creator to admin group
+      this.addMemberToSg(creatorUserId, sgMap.get(RoleNames.AdministratorRole));
+    }
+  }
+
+  private HashMap<RoleNames, ArrayList<Long>> getProjectMemberRoles(Long projectNodeNeoId) throws RuntimeException {
+
+    HashMap<RoleNames, ArrayList<Long>> memberRoles = this.projectMembers.get(projectNodeNeoId);
+    if (memberRoles != null){
+      return memberRoles;
+    }
+
+    ProjectMembers members = null;
+    if (this.useCaches){
+      members = this.caches.projectMembers.get(projectNodeNeoId);
+    }
+
+    if (members == null){
+      long stamp = this.useCaches ? this.caches.projectMembers.stamp() : 0;
+      members = Utility.resolveProjectMembers(tx, projectNodeNeoId);
+      if (this.useCaches){
+        this.caches.projectMembers.put(projectNodeNeoId, members, stamp);
+      }
+    }
+
+    memberRoles = members.byRole();
+    this.projectMembers.put(projectNodeNeoId, memberRoles);
+    return memberRoles;
+  }
+
+  private void processProjectMembers(HashMap<RoleNames, ArrayList<Long>> memberRoles, HashMap<RoleNames, Long> sgMap){
+    // add all project members to this base node for their correct role
+    memberRoles.forEach((role, users) -> {
+      Long roleNodeNeoId = sgMap.get(role);
+      if (roleNodeNeoId == null){
+        return;
+      }
+      for (Long userNodeNeoId: users){
+        // attach user to SG of the role
+        this.relateMember(roleNodeNeoId, userNodeNeoId);
+      }
+    });
+  }
+
+  private Long mergeSecurityGroupForRole(
+    BaseRole role,
+    ExistingSecurity existing,
+    Long baseNodeNeoId,
+    BaseNodeLabels label,
+    List<String> model,
+    long[] perms
+  ){
+
+    Long sgNeoId = existing.sgs.get(role.roleName);
+    if (sgNeoId == null){
+      sgNeoId = this.createSecurityGroup(role, baseNodeNeoId, label, model, perms);
+      this.createdSgs.add(sgNeoId);
+      // roles that are both global and project roles are merged twice
+      existing.sgs.put(role.roleName, sgNeoId);
+    } else if (options.idempotent){
+      this.completeSecurityGroup(sgNeoId, role, label, model, perms);
+    }
+    return sgNeoId;
+  }
+
+  // SecurityGroups and Permission nodes already attached to a base node
+  private static class ExistingSecurity {
+    HashMap<RoleNames, Long> sgs = new HashMap<>();
+    // Permission node neo ids as [2 * property ordinal] (read) and [2 * property ordinal + 1] (edit), -1 if missing
+    long[] perms;
+  }
+
+  private ExistingSecurity getExistingSecurity(Long baseNodeNeoId, BaseNodeLabels label){
+    ExistingSecurity existing = new ExistingSecurity();
+    List<String> model = matrix.getProperties(label);
+    existing.perms = new long[model == null ? 0 : model.size() * 2];
+    Arrays.fill(existing.perms, -1);
+
+    Label sgLabel = Label.label(NonBaseNodeLabels.SecurityGroup.name());
+    Label permLabel = Label.label(NonBaseNodeLabels.Permission.name());
+
+    for (Relationship rel: tx.getNodeById(baseNodeNeoId).getRelationships(Direction.INCOMING,
+      RelationshipType.withName(NonPropertyRelationshipTypes.baseNode.name()))){
+
+      Node node = rel.getStartNode();
+      if (node.hasLabel(sgLabel)){
+        BaseRole role = allRoles.getRoleByStringName((String) node.getProperty(AllProperties.role.name(), ""));
+        if (role != null){
+          existing.sgs.putIfAbsent(role.roleName, node.getId());
+        }
+      } else if (node.hasLabel(permLabel)){
+        int ordinal = matrix.getPropertyOrdinal(label, (String) node.getProperty(AllProperties.property.name(), null));
+        if (ordinal == -1){
+          continue;
+        }
+        int index = 2 * ordinal + ((Boolean) node.getProperty(AllProperties.edit.name(), false) ? 1 : 0);
+        if (existing.perms[index] == -1){
+          existing.perms[index] = node.getId();
+        }
+      }
+    }
+
+    // an SG read back from the graph may have been filled by an earlier node of the batch
+    if (options.idempotent){
+      this.createdSgs.removeAll(existing.sgs.values());
+    }
+    return existing;
+  }
+
+  // creates the Permission nodes a base node is missing, keeping the ones it has
+  private long[] createMissingPermissionNodes(Long baseNodeNeoId, BaseNodeLabels label, List<String> model, long[] existing){
+    long[] perms = existing.clone();
+    for (int i = 0; i < perms.length; i++){
+      if (perms[i] == -1){
+        perms[i] = writer.createPermissionNode(label, model, i / 2, i % 2 == 1);
+        writer.relate(perms[i], NonPropertyRelationshipTypes.baseNode, baseNodeNeoId);
+      }
+    }
+    return perms;
+  }
+
+  // adds the grants an SG found by merge is missing
+  private void completeSecurityGroup(long sgNodeNeoId, BaseRole role, BaseNodeLabels label, List<String> model, long[] perms){
+    if (options.permissionStorage == PermissionStorage.bitmask){
+      this.setPermissionMasks(sgNodeNeoId, role, label);
+      return;
+    }
+    if (options.permissionStorage == PermissionStorage.virtual){
+      // whatever the SG already stores is a subset of its role's grants
+      writer.setProperty(sgNodeNeoId, AllProperties.storage, PermissionStorage.virtual.name());
+      return;
+    }
+
+    HashSet<Long> templates = writer.getRelatedNodes(sgNodeNeoId, NonPropertyRelationshipTypes.template, Direction.OUTGOING);
+
+    if (options.permissionStorage == PermissionStorage.template){
+      if (!templates.contains(this.getPermissionTemplate(role, label))){
+        this.linkPermissionTemplate(sgNodeNeoId, role, label);
+      }
+      return;
+    }
+
+    if (!templates.isEmpty()){
+      return; // the SG already reads its grants from a template
+    }
+
+    HashSet<Long> granted = writer.getRelatedNodes(sgNodeNeoId, NonPropertyRelationshipTypes.permission, Direction.OUTGOING);
+    for (int i = 0; i < model.size(); i++){
+      Perm grant = matrix.get(role.roleName, label, i);
+      if (grant == Perm.NO){
+        continue;
+      }
+      if (!granted.contains(perms[2 * i])){
+        writer.relate(sgNodeNeoId, NonPropertyRelationshipTypes.permission, perms[2 * i]);
+      }
+      if (grant == Perm.RW && !granted.contains(perms[2 * i + 1])){
+        writer.relate(sgNodeNeoId, NonPropertyRelationshipTypes.permission, perms[2 * i + 1]);
+      }
+    }
+  }
+
+  private Long createSecurityGroup(
+    BaseRole role,
+    Long baseNodeNeoId,
+    BaseNodeLabels label,
+    List<String> model,
+    long[] perms
+  ){
+
+    final long sgNodeNeoId;
+    try {
+      // create the security group node and connect it to the base node
+      sgNodeNeoId = writer.createSecurityGroup();
+      writer.setProperty(sgNodeNeoId, AllProperties.id, this.getUniqueIdFromNeo4jId(sgNodeNeoId));
+      writer.setCreatedAt(sgNodeNeoId);
+      writer.setProperty(sgNodeNeoId, AllProperties.role, role.roleName.name());
+      writer.relate(sgNodeNeoId, NonPropertyRelationshipTypes.baseNode, baseNodeNeoId);
+
+      if (options.permissionStorage == PermissionStorage.template){
+        this.linkPermissionTemplate(sgNodeNeoId, role, label);
+      } else if (options.permissionStorage == PermissionStorage.bitmask){
+        this.setPermissionMasks(sgNodeNeoId, role, label);
+      } else if (options.permissionStorage == PermissionStorage.virtual){
+        // the SG's role is its grant, read through the permission matrix
+        writer.setProperty(sgNodeNeoId, AllProperties.storage, PermissionStorage.virtual.name());
+      } else {
+        // add all permissions to the SG according to the role and base node class
+        // cycle through properties of base node
+        this.createPermissionRelationships(sgNodeNeoId, role, label, model, perms);
+      }
+
+    } catch(Exception e){
+      this.log.error(e.getMessage());
+      throw new RuntimeException("failed to create security group");
+    }
+
+    return sgNodeNeoId;
+  }
+
+  private void createPermissionRelationships(
+    long sgNodeNeoId,
+    BaseRole role,
+    BaseNodeLabels label,
+    List<String> model,
+    long[] perms
+  ){
+    for (int i = 0; i < model.size(); i++){
+      // determine if the role grants the prop
+      Perm grant = matrix.get(role.roleName, label, i);
+      if (grant == Perm.NO){
+        continue;
+      }
+
+      // connect the permision nodes if permitted
+      writer.relate(sgNodeNeoId, NonPropertyRelationshipTypes.permission, perms[2 * i]);
+
+      if (grant == Perm.RW){
+        writer.relate(sgNodeNeoId, NonPropertyRelationshipTypes.permission, perms[2 * i + 1]);
+      }
+    }
+  }
+
+  public void linkPermissionTemplate(long sgNodeNeoId, BaseRole role, BaseNodeLabels label){
+    writer.setProperty(sgNodeNeoId, AllProperties.storage, PermissionStorage.template.name());
+    writer.relate(sgNodeNeoId, NonPropertyRelationshipTypes.template, this.getPermissionTemplate(role, label));
+  }
+
+  public void setPermissionMasks(long sgNodeNeoId, BaseRole role, BaseNodeLabels label){
+    writer.setProperty(sgNodeNeoId, AllProperties.storage, PermissionStorage.bitmask.name());
+    writer.setProperty(sgNodeNeoId, AllProperties.readMask, Values.longArray(matrix.getMask(role.roleName, label, false)));
+    writer.setProperty(sgNodeNeoId, AllProperties.editMask, Values.longArray(matrix.getMask(role.roleName, label, true)));
+  }
+
+  public static String getPermissionTemplateKey(BaseRole role, BaseNodeLabels label){
+    return label.name() + ":" + role.roleName.name();
+  }
+
+  // finds or creates the shared grant set of a (label, role). the template's
+  // Permission nodes mirror the per node ones but have no baseNode relationship.
+  public Long getPermissionTemplate(BaseRole role, BaseNodeLabels label) throws RuntimeException {
+
+    String key = SecurityProcessor.getPermissionTemplateKey(role, label);
+    Long templateNeoId = this.templates.get(key);
+    if (templateNeoId != null){
+      return templateNeoId;
+    }
+
+    try {
+      Label templateLabel = Label.label(NonBaseNodeLabels.PermissionTemplate.name());
+      templateNeoId = this.findSharedNode(templateLabel, key);
+
+      if (templateNeoId == null){
+        templateNeoId = writer.createPermissionTemplate();
+        Long committed = this.claimSharedKey(templateNeoId, templateLabel, key);
+        if (committed != null){
+          this.templates.put(key, committed);
+          return committed;
+        }
+        writer.setProperty(templateNeoId, AllProperties.label, label.name());
+        writer.setProperty(templateNeoId, AllProperties.role, role.roleName.name());
+        writer.setCreatedAt(templateNeoId);
+
+        List<String> model = matrix.getProperties(label);
+        long[] perms = this.createAllPermissionNodes(null, label, model);
+        this.createPermissionRelationships(templateNeoId, role, label, model, perms);
+
+        // drop the permission nodes the role doesn't grant
+        for (long permNeoId: perms){
+          if (!writer.hasRelationship(permNeoId, NonPropertyRelationshipTypes.permission, Direction.INCOMING)){
+            writer.deleteNode(permNeoId);
+          }
+        }
+      }
+
+    } catch(Exception e){
+      this.log.error(e.getMessage());
+      throw new RuntimeException("error in finding permission template " + key);
+    }
+
+    this.templates.put(key, templateNeoId);
+    return templateNeoId;
+  }
+
+  // the shared node of the key. a duplicate created before the key had its uniqueness
+  // constraint doesn't fail the lookup, the oldest node is used.
+  private Long findSharedNode(Label label, String key){
+    Long found = null;
+    try (ResourceIterator<Node> nodes = tx.findNodes(label, AllProperties.key.name(), key)) {
+      while (nodes.hasNext()){
+        long neoId = nodes.next().getId();
+        if (found == null || neoId < found){
+          found = neoId;
+        }
+      }
+    }
+    return found;
+  }
+
+  // keys a shared node just created by this transaction. with the uniqueness constraint
+  // from cord.ensureSchema, a concurrent creator of the same key waits for the first one
+  // to commit and then fails on the key, so it drops its node and uses the committed one,
+  // which is returned. null if the new node holds the key.
+  private Long claimSharedKey(long nodeNeoId, Label label, String key){
+    if (writer.setUniqueProperty(nodeNeoId, AllProperties.key, key)){
+      return null;
+    }
+    writer.deleteNode(nodeNeoId);
+    Long committed = this.findSharedNode(label, key);
+    if (committed == null){
+      throw new RuntimeException("key " + key + " is taken but no node holds it");
+    }
+    return committed;
+  }
+
+  private String getUniqueIdFromNeo4jId(Long id){
+    return "i0_" + Long.valueOf(id); // todo, replace with nanoid like impl
+  }
+
+  private long[] createAllPermissionNodes(Long baseNodeNeoId, BaseNodeLabels label, List<String> propertyList) throws RuntimeException {
+
+    try {
+      long[] perms = writer.createPermissionNodes(label, propertyList);
+
+      if (baseNodeNeoId != null){
+        for (long permNeoId: perms){
+          writer.relate(permNeoId, NonPropertyRelationshipTypes.baseNode, baseNodeNeoId);
+        }
+      }
+
+      return perms;
+
+    } catch(Exception e){
+      this.log.error(e.getMessage());
+      throw new RuntimeException("error in creating permission nodes");
+    }
+  }
+
+  public void addMemberToSg(String userId, Long sgNodeNeoId) throws RuntimeException {
+    try {
+      Node userNode = tx.findNode(Label.label(BaseNodeLabels.User.name()), AllProperties.id.name(), userId);
+      this.relateMember(sgNodeNeoId, userNode.getId());
+    } catch(Exception e){
+      this.log.error(e.getMessage());
+      throw new RuntimeException("error in adding member to SG. userId, sgId: " + userId + " " + sgNodeNeoId);
+    }
+  }
+
+  private long[] getGlobalRoleUsers(BaseRole role) throws RuntimeException {
+
+    long[] users = this.globalRoleUsers.get(role.roleName);
+    if (users != null){
+      return users;
+    }
+
+    if (this.useCaches){
+      users = this.caches.globalRoleIndex.getUsers(tx, AllRoles.getFrontendRoleNameFromApiRoleName(role.roleName));
+      this.globalRoleUsers.put(role.roleName, users);
+      return users;
+    }
+
+    // without the index every global role is resolved by the first SG of the batch
+    Utility.getGlobalRoleUsers(tx).forEach((roleName, userList) ->
+      this.globalRoleUsers.put(roleName, userList.stream().mapToLong(Long::longValue).toArray()));
+    return this.globalRoleUsers.getOrDefault(role.roleName, new long[0]);
+  }
+
+  public static String getGlobalMembershipGroupKey(BaseRole role, BaseNodeLabels label){
+    return "global:" + label.name() + ":" + role.roleName.name();
+  }
+
+  // finds or creates the long-lived group holding every user of a global role,
+  // shared by all SGs of that role on nodes of the label
+  private Long getGlobalMembershipGroup(BaseRole role, BaseNodeLabels label) throws RuntimeException {
+
+    String key = SecurityProcessor.getGlobalMembershipGroupKey(role, label);
+    Long groupNeoId = this.membershipGroups.get(key);
+    if (groupNeoId != null){
+      return groupNeoId;
+    }
+
+    try {
+      Label groupLabel = Label.label(NonBaseNodeLabels.MembershipGroup.name());
+      groupNeoId = this.findSharedNode(groupLabel, key);
+
+      if (groupNeoId == null){
+        groupNeoId = writer.createMembershipGroup();
+        Long committed = this.claimSharedKey(groupNeoId, groupLabel, key);
+        if (committed != null){
+          this.membershipGroups.put(key, committed);
+          return committed;
+        }
+        writer.setProperty(groupNeoId, AllProperties.label, label.name());
+        writer.setProperty(groupNeoId, AllProperties.role, role.roleName.name());
+        writer.setCreatedAt(groupNeoId);
+
+        for (long userNodeNeoId: this.getGlobalRoleUsers(role)){
+          writer.relate(groupNeoId, NonPropertyRelationshipTypes.member, userNodeNeoId);
+        }
+      }
+
+    } catch(Exception e){
+      this.log.error(e.getMessage());
+      throw new RuntimeException("error in finding membership group " + key);
+    }
+
+    this.membershipGroups.put(key, groupNeoId);
+    return groupNeoId;
+  }
+
+  public static String getProjectMembershipGroupKey(String projectId, RoleNames role){
+    return "project:" + projectId + ":" + role.name();
+  }
+
+  // links each role SG of the node to the project's group for that role, even while
+  // the group is empty, so adding or removing a member is a single edge on the group.
+  // new nodes cost O(roles) instead of O(members x roles).
+  private void linkProjectMembershipGroups(Long projectNodeNeoId, HashMap<RoleNames, Long> sgMap) throws RuntimeException {
+    HashMap<RoleNames, ArrayList<Long>> memberRoles = this.getProjectMemberRoles(projectNodeNeoId);
+
+    sgMap.forEach((role, sgNodeNeoId) -> {
+      ArrayList<Long> users = memberRoles.getOrDefault(role, new ArrayList<Long>());
+      this.linkMembershipGroup(sgNodeNeoId, this.getProjectMembershipGroup(projectNodeNeoId, role, users));
+    });
+  }
+
+  private Long getProjectMembershipGroup(Long projectNodeNeoId, RoleNames role, ArrayList<Long> users) throws RuntimeException {
+
+    Node projectNode = tx.getNodeById(projectNodeNeoId);
+    String key = SecurityProcessor.getProjectMembershipGroupKey(
+      (String) projectNode.getProperty(AllProperties.id.name()), role);
+
+    Long groupNeoId = this.membershipGroups.get(key);
+    if (groupNeoId != null){
+      return groupNeoId;
+    }
+
+    try {
+      Label groupLabel = Label.label(NonBaseNodeLabels.MembershipGroup.name());
+      groupNeoId = this.findSharedNode(groupLabel, key);
+
+      if (groupNeoId == null){
+        // creators of a project's groups queue on the project node until the first
+        // one commits, then find its group. needs no constraint.
+        tx.acquireWriteLock(projectNode);
+        groupNeoId = this.findSharedNode(groupLabel, key);
+      }
+
+      if (groupNeoId == null){
+        groupNeoId = writer.createMembershipGroup();
+        Long committed = this.claimSharedKey(groupNeoId, groupLabel, key);
+        if (committed != null){
+          this.membershipGroups.put(key, committed);
+          return committed;
+        }
+        writer.setProperty(groupNeoId, AllProperties.role, role.name());
+        writer.setCreatedAt(groupNeoId);
+        writer.relate(groupNeoId, NonPropertyRelationshipTypes.scope, projectNodeNeoId);
+
+        for (Long userNodeNeoId: new HashSet<>(users)){
+          writer.relate(groupNeoId, NonPropertyRelationshipTypes.member, userNodeNeoId);
+        }
+      }
+
+    } catch(Exception e){
+      this.log.error(e.getMessage());
+      throw new RuntimeException("error in finding membership group " + key);
+    }
+
+    this.membershipGroups.put(key, groupNeoId);
+    return groupNeoId;
+  }
+
+  // adds the member edge unless this SG already has the user
+  private void relateMember(Long sgNodeNeoId, Long userNodeNeoId){
+    if (!this.sgMembers.computeIfAbsent(sgNodeNeoId, sg -> new HashSet<>()).add(userNodeNeoId)){
+      return;
+    }
+    // an SG found by merge may have had the user before this processor
+    if (!this.createdSgs.contains(sgNodeNeoId) && writer.isRelated(sgNodeNeoId, NonPropertyRelationshipTypes.member, userNodeNeoId)){
+      return;
+    }
+    writer.relate(sgNodeNeoId, NonPropertyRelationshipTypes.member, userNodeNeoId);
+  }
+
+  private void linkMembershipGroup(Long sgNodeNeoId, Long groupNeoId){
+    // an SG found by merge may already reference the group
+    if (!this.createdSgs.contains(sgNodeNeoId) && writer.isRelated(sgNodeNeoId, NonPropertyRelationshipTypes.memberGroup, groupNeoId)){
+      return;
+    }
+
+    writer.relate(sgNodeNeoId, NonPropertyRelationshipTypes.memberGroup, groupNeoId);
+  }
+
+  private void addRoleMembersToSg(BaseRole role, Long sgNodeNeoId){
+
+    try {
+
+      for (long userNodeNeoId: this.getGlobalRoleUsers(role)){
+        this.relateMember(sgNodeNeoId, userNodeNeoId);
+      }
+
+    } catch(Exception e){
+      e.printStackTrace();
+      throw new RuntimeException("error in adding an SG to all users with a specific role");
+    }
+
+  }
+}
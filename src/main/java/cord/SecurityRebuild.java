@@ -0,0 +1,300 @@
+package cord;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.logging.Log;
+
+import cord.cache.SecurityCaches;
+import cord.common.AllProperties;
+import cord.common.BaseNodeLabels;
+import cord.common.NonBaseNodeLabels;
+
+// Secures every existing node of the given labels with the same idempotent
+// processing the queue uses. A label's node ids are split into contiguous ranges
+// that are processed concurrently, each in its own transaction, and a wave of
+// ranges is checkpointed on a :SecurityRebuild node once all of it committed, so
+// a run that was killed picks up after the last checkpoint.
+public class SecurityRebuild {
+
+  private static final int MAX_ATTEMPTS = 3;
+  private static final Label CHECKPOINT = Label.label(NonBaseNodeLabels.SecurityRebuild.name());
+
+  // project context labels after the labels they hang off, so a node's ancestors
+  // are resolved and cached before the node itself. other labels go first.
+  private static final List<BaseNodeLabels> PARENT_FIRST = List.of(
+    BaseNodeLabels.Project,
+    BaseNodeLabels.ProjectMember,
+    BaseNodeLabels.Budget,
+    BaseNodeLabels.BudgetRecord,
+    BaseNodeLabels.Partnership,
+    BaseNodeLabels.Engagement,
+    BaseNodeLabels.LanguageEngagement,
+    BaseNodeLabels.InternshipEngagement,
+    BaseNodeLabels.Ceremony,
+    BaseNodeLabels.Product,
+    BaseNodeLabels.Directory,
+    BaseNodeLabels.FileNode,
+    BaseNodeLabels.File,
+    BaseNodeLabels.FileVersion
+  );
+
+  private final GraphDatabaseService db;
+  private final Log log;
+  private final int batchSize;
+  private final int parallelism;
+  private final SecurityCaches caches;
+
+  public SecurityRebuild(GraphDatabaseService db, Log log, long batchSize, long parallelism){
+    this.db = db;
+    this.log = log;
+    this.batchSize = (int) Math.max(1, batchSize);
+    this.parallelism = (int) Math.max(1, parallelism);
+    this.caches = SecurityCaches.forDatabase(db.databaseName());
+  }
+
+  public static class RebuildProgress {
+    public String label;
+    // the id range committed by this wave
+    public Long fromNodeId;
+    public Long toNodeId;
+    // totals of the label, including runs before a resume
+    public Long processed = 0L;
+    public Long failed = 0L;
+    public Long remaining = 0L;
+    public Boolean done = false;
+  }
+
+  // an empty list rebuilds every label with a model. rows are produced as the caller reads them.
+  public Stream<RebuildProgress> rebuild(List<String> labelNames) throws RuntimeException {
+
+    ArrayList<BaseNodeLabels> labels = new ArrayList<>();
+    if (labelNames == null || labelNames.isEmpty()){
+      for (BaseNodeLabels label: BaseNodeLabels.values()){
+        if (PermissionMatrix.getInstance().getProperties(label) != null){
+          labels.add(label);
+        }
+      }
+    } else {
+      for (String labelName: labelNames){
+        labels.add(Utility.baseNodeClassStringToEnum(labelName));
+      }
+    }
+    labels.sort((a, b) -> Integer.compare(PARENT_FIRST.indexOf(a), PARENT_FIRST.indexOf(b)));
+
+    ExecutorService executor = Executors.newFixedThreadPool(this.parallelism);
+    Iterator<RebuildProgress> waves = new Iterator<RebuildProgress>(){
+
+      int labelIndex = -1;
+      LabelRun run;
+      RebuildProgress next;
+
+      @Override
+      public boolean hasNext(){
+        while (this.next == null){
+          if (this.run == null || this.run.finished){
+            if (++this.labelIndex == labels.size()){
+              return false;
+            }
+            this.run = SecurityRebuild.this.startLabel(labels.get(this.labelIndex));
+          }
+          this.next = SecurityRebuild.this.runWave(this.run, executor);
+        }
+        return true;
+      }
+
+      @Override
+      public RebuildProgress next(){
+        if (!this.hasNext()){
+          throw new NoSuchElementException();
+        }
+        RebuildProgress progress = this.next;
+        this.next = null;
+        return progress;
+      }
+    };
+
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(waves, Spliterator.ORDERED), false)
+      .onClose(executor::shutdown);
+  }
+
+  private static class LabelRun {
+    BaseNodeLabels label;
+    Long checkpointNeoId;
+    // node ids after the checkpoint, ascending
+    long[] nodes;
+    int position = 0;
+    long processed;
+    long failed;
+    Boolean finished = false;
+  }
+
+  private LabelRun startLabel(BaseNodeLabels label) throws RuntimeException {
+    LabelRun run = new LabelRun();
+    run.label = label;
+
+    try (Transaction tx = db.beginTx()) {
+      Node checkpoint = tx.findNode(CHECKPOINT, AllProperties.label.name(), label.name());
+      if (checkpoint == null){
+        checkpoint = tx.createNode(CHECKPOINT);
+        checkpoint.setProperty(AllProperties.label.name(), label.name());
+        checkpoint.setProperty(AllProperties.lastNodeId.name(), -1L);
+        checkpoint.setProperty(AllProperties.processed.name(), 0L);
+        checkpoint.setProperty(AllProperties.failed.name(), 0L);
+        checkpoint.setProperty(AllProperties.createdAt.name(), ZonedDateTime.now());
+      }
+      run.checkpointNeoId = checkpoint.getId();
+      run.processed = (Long) checkpoint.getProperty(AllProperties.processed.name());
+      run.failed = (Long) checkpoint.getProperty(AllProperties.failed.name());
+      long lastNodeId = (Long) checkpoint.getProperty(AllProperties.lastNodeId.name());
+
+      // ids only, the label scan isn't guaranteed to be in id order
+      long[] nodes = new long[1024];
+      int count = 0;
+      try (ResourceIterator<Node> labelNodes = tx.findNodes(Label.label(label.name()))) {
+        while (labelNodes.hasNext()){
+          long nodeNeoId = labelNodes.next().getId();
+          if (nodeNeoId <= lastNodeId){
+            continue;
+          }
+          if (count == nodes.length){
+            nodes = Arrays.copyOf(nodes, count * 2);
+          }
+          nodes[count++] = nodeNeoId;
+        }
+      }
+      run.nodes = Arrays.copyOf(nodes, count);
+      Arrays.sort(run.nodes);
+
+      tx.commit();
+    } catch (Exception e){
+      e.printStackTrace();
+      this.log.error(e.getMessage());
+      throw new RuntimeException("error in starting security rebuild of " + label);
+    }
+
+    this.log.info("cord security rebuild of " + label + ": " + run.nodes.length + " nodes after checkpoint");
+    return run;
+  }
+
+  // up to parallelism ranges of batchSize nodes, checkpointed once all of them committed
+  private RebuildProgress runWave(LabelRun run, ExecutorService executor) throws RuntimeException {
+    RebuildProgress progress = new RebuildProgress();
+    progress.label = run.label.name();
+
+    int from = run.position;
+    int to = Math.min(from + this.batchSize * this.parallelism, run.nodes.length);
+
+    if (from < to){
+      List<Future<long[]>> partitions = new ArrayList<>();
+      for (int start = from; start < to; start += this.batchSize){
+        long[] partition = Arrays.copyOfRange(run.nodes, start, Math.min(start + this.batchSize, to));
+        partitions.add(executor.submit(() -> this.processPartition(run.label, partition)));
+      }
+
+      try {
+        for (Future<long[]> partition: partitions){
+          long[] counts = partition.get();
+          run.processed += counts[0];
+          run.failed += counts[1];
+        }
+      } catch (Exception e){
+        e.printStackTrace();
+        this.log.error(e.getMessage());
+        throw new RuntimeException("error in rebuilding security of " + run.label + " nodes "
+          + run.nodes[from] + " to " + run.nodes[to - 1] + ", the next run resumes there");
+      }
+
+      run.position = to;
+      progress.fromNodeId = run.nodes[from];
+      progress.toNodeId = run.nodes[to - 1];
+    }
+
+    run.finished = run.position == run.nodes.length;
+    this.saveCheckpoint(run, progress.toNodeId);
+
+    progress.processed = run.processed;
+    progress.failed = run.failed;
+    progress.remaining = (long) (run.nodes.length - run.position);
+    progress.done = run.finished;
+    return progress;
+  }
+
+  // [processed, failed]. a failed batch is retried node by node, so one bad node doesn't stop the rebuild
+  private long[] processPartition(BaseNodeLabels label, long[] partition){
+    for (int attempt = 1; ; attempt++){
+      try {
+        this.processNodes(label, partition);
+        return new long[]{ partition.length, 0 };
+      } catch (TransientFailureException e){
+        if (attempt == MAX_ATTEMPTS){
+          break;
+        }
+      } catch (Exception e){
+        break;
+      }
+    }
+
+    long[] counts = new long[2];
+    for (long nodeNeoId: partition){
+      try {
+        this.processNodes(label, new long[]{ nodeNeoId });
+        counts[0]++;
+      } catch (Exception e){
+        this.log.error("cord security rebuild of " + label + " node " + nodeNeoId + " failed: " + e.getMessage());
+        counts[1]++;
+      }
+    }
+    return counts;
+  }
+
+  private void processNodes(BaseNodeLabels label, long[] nodes){
+    SecurityOptions options = new SecurityOptions();
+    options.idempotent = true;
+
+    try (
+      Transaction tx = db.beginTx();
+      SecurityProcessor processor = new SecurityProcessor(tx, this.log, options, this.caches)
+    ) {
+      for (long nodeNeoId: nodes){
+        Node node;
+        try {
+          node = tx.getNodeById(nodeNeoId);
+        } catch (NotFoundException e){
+          continue; // deleted since the scan
+        }
+        Object createdBy = node.getProperty(AllProperties.createdBy.name(), null);
+        processor.processBaseNode(nodeNeoId, label, createdBy instanceof String ? (String) createdBy : null);
+      }
+      tx.commit();
+    }
+  }
+
+  // a finished label's checkpoint is removed, so the next run starts over
+  private void saveCheckpoint(LabelRun run, Long lastNodeId){
+    try (Transaction tx = db.beginTx()) {
+      Node checkpoint = tx.getNodeById(run.checkpointNeoId);
+      if (run.finished){
+        checkpoint.delete();
+      } else {
+        checkpoint.setProperty(AllProperties.lastNodeId.name(), lastNodeId);
+        checkpoint.setProperty(AllProperties.processed.name(), run.processed);
+        checkpoint.setProperty(AllProperties.failed.name(), run.failed);
+        checkpoint.setProperty(AllProperties.modifiedAt.name(), ZonedDateTime.now());
+      }
+      tx.commit();
+    }
+  }
+}
@@ -0,0 +1,212 @@
+package cord;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.schema.ConstraintDefinition;
+import org.neo4j.graphdb.schema.ConstraintType;
+import org.neo4j.graphdb.schema.IndexDefinition;
+import org.neo4j.graphdb.schema.IndexType;
+import org.neo4j.graphdb.schema.Schema;
+import org.neo4j.logging.Log;
+
+import cord.common.AllProperties;
+import cord.common.BaseNodeLabels;
+import cord.common.NonBaseNodeLabels;
+
+// The single property indexes the security paths look nodes up by. Without
+// one, findNode and the property matches in Utility fall back to scanning
+// every node of the label. Missing indexes are created in their own
+// transaction, then every index is reported with its state. A uniqueness
+// constraint on the property counts, as it is backed by an index. The keys the
+// plugin owns get a uniqueness constraint, so concurrent find-or-create calls
+// can't leave two templates or membership groups behind for one key.
+public class SecuritySchema {
+
+  public static class IndexResponse {
+    public String label;
+    public String property;
+    public String usedBy;
+    public Boolean unique;
+    public String index;
+    // the uniqueness constraint backing the index, if there is one
+    public String constraint;
+    // ONLINE, POPULATING or FAILED, null while missing
+    public String state;
+    // existing, created, missing or failed
+    public String action;
+
+    IndexResponse(String label, String property, String usedBy, Boolean unique){
+      this.label = label;
+      this.property = property;
+      this.usedBy = usedBy;
+      this.unique = unique;
+    }
+  }
+
+  private final GraphDatabaseService db;
+  private final Log log;
+
+  public SecuritySchema(GraphDatabaseService db, Log log){
+    this.db = db;
+    this.log = log;
+  }
+
+  public static List<IndexResponse> getRequiredIndexes(){
+    List<IndexResponse> indexes = new ArrayList<>();
+    for (BaseNodeLabels label: BaseNodeLabels.values()){
+      indexes.add(new IndexResponse(label.name(), AllProperties.id.name(),
+        "Utility.getNode, getSecurityGroupNode, addMemberToSg, permissionsFor", false));
+    }
+    indexes.add(new IndexResponse(NonBaseNodeLabels.SecurityGroup.name(), AllProperties.role.name(),
+      "getSecurityGroupNode, syncUserGlobalRoles", false));
+    indexes.add(new IndexResponse(NonBaseNodeLabels.Permission.name(), AllProperties.property.name(),
+      "property access checks matching (:Permission {property})", false));
+    indexes.add(new IndexResponse(NonBaseNodeLabels.PermissionTemplate.name(), AllProperties.key.name(),
+      "getPermissionTemplate", true));
+    indexes.add(new IndexResponse(NonBaseNodeLabels.MembershipGroup.name(), AllProperties.key.name(),
+      "getGlobalMembershipGroup, getProjectMembershipGroup, syncProjectMember", true));
+    indexes.add(new IndexResponse(NonBaseNodeLabels.MembershipGroup.name(), AllProperties.role.name(),
+      "syncUserGlobalRoles", false));
+    indexes.add(new IndexResponse(NonBaseNodeLabels.SecurityRebuild.name(), AllProperties.label.name(),
+      "rebuildSecurity checkpoints", true));
+    indexes.add(new IndexResponse(NonBaseNodeLabels.SecurityQueueItem.name(), AllProperties.enqueuedAt.name(),
+      "security queue workers taking the oldest items", false));
+    return indexes;
+  }
+
+  public List<IndexResponse> ensure(Boolean create, long timeoutSeconds) throws RuntimeException {
+    List<IndexResponse> indexes = getRequiredIndexes();
+
+    if (create){
+      for (IndexResponse index: indexes){
+        if (index.unique){
+          this.createConstraint(index);
+        }
+      }
+
+      try (Transaction tx = db.beginTx()) {
+        for (IndexResponse index: indexes){
+          if (!index.unique && this.findIndex(tx.schema(), index) == null){
+            tx.schema().indexFor(Label.label(index.label)).on(index.property)
+              .withName("cord_" + index.label + "_" + index.property)
+              .create();
+            index.action = "created";
+          }
+        }
+        tx.commit();
+      } catch (Exception e){
+        e.printStackTrace();
+        this.log.error(e.getMessage());
+        throw new RuntimeException("error in creating the security indexes");
+      }
+    }
+
+    try (Transaction tx = db.beginTx()) {
+      Schema schema = tx.schema();
+      if (timeoutSeconds > 0){
+        try {
+          schema.awaitIndexesOnline(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (IllegalStateException e){
+          this.log.warn("security indexes not online after " + timeoutSeconds + "s: " + e.getMessage());
+        }
+      }
+
+      for (IndexResponse index: indexes){
+        IndexDefinition definition = this.findIndex(schema, index);
+        ConstraintDefinition constraint = this.findConstraint(schema, index);
+        if (constraint != null){
+          index.constraint = constraint.getName();
+        } else if (index.unique && index.action == null){
+          index.action = "missing";
+          this.log.warn("no uniqueness constraint on :" + index.label + "(" + index.property + "), concurrent " + index.usedBy + " can create duplicates");
+        }
+        if (definition == null){
+          if (index.action == null){
+            index.action = "missing";
+          }
+          this.log.warn("no index on :" + index.label + "(" + index.property + "), " + index.usedBy + " scan the label");
+          continue;
+        }
+        if (index.action == null){
+          index.action = "existing";
+        }
+        index.index = definition.getName();
+        index.state = schema.getIndexState(definition).name();
+      }
+      tx.commit();
+    } catch (Exception e){
+      e.printStackTrace();
+      this.log.error(e.getMessage());
+      throw new RuntimeException("error in verifying the security indexes");
+    }
+
+    return indexes;
+  }
+
+  // each in its own transaction, as duplicates already in the graph fail the commit.
+  // a plain index on the key is replaced, the constraint brings its own.
+  private void createConstraint(IndexResponse index){
+    String plainIndex = null;
+    try (Transaction tx = db.beginTx()) {
+      if (this.findConstraint(tx.schema(), index) != null){
+        return;
+      }
+      IndexDefinition plain = this.findIndex(tx.schema(), index);
+      if (plain != null){
+        plainIndex = plain.getName();
+        plain.drop();
+      }
+      tx.commit();
+    }
+
+    try (Transaction tx = db.beginTx()) {
+      tx.schema().constraintFor(Label.label(index.label)).assertPropertyIsUnique(index.property)
+        .withName("cord_" + index.label + "_" + index.property + "_unique")
+        .create();
+      tx.commit();
+      index.action = "created";
+    } catch (Exception e){
+      index.action = "failed";
+      this.log.error("cannot create a uniqueness constraint on :" + index.label + "(" + index.property + "): " + e.getMessage());
+      if (plainIndex != null){
+        // put the lookup index back
+        try (Transaction tx = db.beginTx()) {
+          tx.schema().indexFor(Label.label(index.label)).on(index.property).withName(plainIndex).create();
+          tx.commit();
+        }
+      }
+    }
+  }
+
+  private ConstraintDefinition findConstraint(Schema schema, IndexResponse index){
+    for (ConstraintDefinition definition: schema.getConstraints(Label.label(index.label))){
+      if (!definition.isConstraintType(ConstraintType.UNIQUENESS)){
+        continue;
+      }
+      List<String> keys = new ArrayList<>();
+      definition.getPropertyKeys().forEach(keys::add);
+      if (keys.size() == 1 && keys.get(0).equals(index.property)){
+        return definition;
+      }
+    }
+    return null;
+  }
+
+  // an index that serves an equality lookup on the one property, not a composite or fulltext one
+  private IndexDefinition findIndex(Schema schema, IndexResponse index){
+    for (IndexDefinition definition: schema.getIndexes(Label.label(index.label))){
+      if (definition.getIndexType() != IndexType.BTREE){
+        continue;
+      }
+      List<String> keys = new ArrayList<>();
+      definition.getPropertyKeys().forEach(keys::add);
+      if (keys.size() == 1 && keys.get(0).equals(index.property)){
+        return definition;
+      }
+    }
+    return null;
+  }
+}
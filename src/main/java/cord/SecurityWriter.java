@@ -0,0 +1,281 @@
+package cord;
+
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import org.neo4j.exceptions.KernelException;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.internal.kernel.api.NodeCursor;
+import org.neo4j.internal.kernel.api.Read;
+import org.neo4j.internal.kernel.api.RelationshipTraversalCursor;
+import org.neo4j.internal.kernel.api.TokenWrite;
+import org.neo4j.internal.kernel.api.Write;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.api.exceptions.schema.UniquePropertyValueValidationException;
+import org.neo4j.kernel.impl.coreapi.InternalTransaction;
+import org.neo4j.storageengine.api.RelationshipSelection;
+import org.neo4j.values.storable.Value;
+import org.neo4j.values.storable.Values;
+
+import cord.common.AllProperties;
+import cord.common.BaseNodeLabels;
+import cord.common.NonBaseNodeLabels;
+import cord.common.NonPropertyRelationshipTypes;
+
+// Writes security structures through the kernel API of the caller's transaction.
+// Label, relationship type and property key tokens are resolved once per writer,
+// and reads go through one node and one relationship cursor that are reused.
+public class SecurityWriter implements AutoCloseable {
+
+  private final KernelTransaction ktx;
+  private final Write write;
+  private final Read read;
+  private final TokenWrite tokens;
+
+  private final int[] securityGroupLabels;
+  private final int[] permissionTemplateLabels;
+  private final int[] membershipGroupLabels;
+  private final int permissionLabel;
+  private final int canReadLabel;
+  private final int canEditLabel;
+
+  private final int[] relationshipTypes;
+  private final int[] propertyKeys;
+
+  // base node label -> [property ordinal][read labels, edit labels] of its Permission nodes
+  private final HashMap<BaseNodeLabels, int[][][]> permissionLabels = new HashMap<>();
+
+  private NodeCursor nodeCursor;
+  private RelationshipTraversalCursor relationshipCursor;
+
+  public SecurityWriter(Transaction tx) throws RuntimeException {
+    this.ktx = ((InternalTransaction) tx).kernelTransaction();
+    try {
+      this.write = ktx.dataWrite();
+      this.read = ktx.dataRead();
+      this.tokens = ktx.tokenWrite();
+
+      this.securityGroupLabels = new int[]{ this.label(NonBaseNodeLabels.SecurityGroup.name()) };
+      this.permissionTemplateLabels = new int[]{ this.label(NonBaseNodeLabels.PermissionTemplate.name()) };
+      this.membershipGroupLabels = new int[]{ this.label(NonBaseNodeLabels.MembershipGroup.name()) };
+      this.permissionLabel = this.label(NonBaseNodeLabels.Permission.name());
+      this.canReadLabel = this.label(NonBaseNodeLabels.canRead.name());
+      this.canEditLabel = this.label(NonBaseNodeLabels.canEdit.name());
+
+      NonPropertyRelationshipTypes[] types = NonPropertyRelationshipTypes.values();
+      this.relationshipTypes = new int[types.length];
+      for (NonPropertyRelationshipTypes type: types){
+        this.relationshipTypes[type.ordinal()] = tokens.relationshipTypeGetOrCreateForName(type.name());
+      }
+
+      // AllProperties holds every key written here, resolved on first use
+      this.propertyKeys = new int[AllProperties.values().length];
+      Arrays.fill(this.propertyKeys, -1);
+
+    } catch (KernelException e){
+      throw new RuntimeException("error in resolving security tokens: " + e.getMessage());
+    }
+  }
+
+  private int label(String name) throws KernelException {
+    return tokens.labelGetOrCreateForName(name);
+  }
+
+  public int type(NonPropertyRelationshipTypes type){
+    return this.relationshipTypes[type.ordinal()];
+  }
+
+  public long createSecurityGroup() throws RuntimeException {
+    return this.createNode(this.securityGroupLabels);
+  }
+
+  public long createPermissionTemplate() throws RuntimeException {
+    return this.createNode(this.permissionTemplateLabels);
+  }
+
+  public long createMembershipGroup() throws RuntimeException {
+    return this.createNode(this.membershipGroupLabels);
+  }
+
+  // a read and an edit Permission node per property, returned as [2 * ordinal] and [2 * ordinal + 1]
+  public long[] createPermissionNodes(BaseNodeLabels label, List<String> model) throws RuntimeException {
+    long[] perms = new long[model.size() * 2];
+    for (int i = 0; i < model.size(); i++){
+      perms[2 * i] = this.createPermissionNode(label, model, i, false);
+      perms[2 * i + 1] = this.createPermissionNode(label, model, i, true);
+    }
+    return perms;
+  }
+
+  public long createPermissionNode(BaseNodeLabels label, List<String> model, int ordinal, Boolean edit) throws RuntimeException {
+    int[][][] labels = this.getPermissionLabels(label, model);
+
+    long perm = this.createNode(labels[ordinal][edit ? 1 : 0]);
+    this.setProperty(perm, AllProperties.property, model.get(ordinal));
+    this.setProperty(perm, AllProperties.read, Values.booleanValue(true));
+    if (edit){
+      this.setProperty(perm, AllProperties.edit, Values.booleanValue(true));
+    }
+    return perm;
+  }
+
+  private int[][][] getPermissionLabels(BaseNodeLabels label, List<String> model) throws RuntimeException {
+    int[][][] labels = this.permissionLabels.get(label);
+    if (labels != null){
+      return labels;
+    }
+
+    labels = new int[model.size()][][];
+    try {
+      for (int i = 0; i < model.size(); i++){
+        int propertyLabel = this.label(label.name() + model.get(i));
+        labels[i] = new int[][]{
+          { this.permissionLabel, propertyLabel, this.canReadLabel },
+          { this.permissionLabel, propertyLabel, this.canReadLabel, this.canEditLabel }
+        };
+      }
+    } catch (KernelException e){
+      throw new RuntimeException("error in resolving permission labels of " + label + ": " + e.getMessage());
+    }
+
+    this.permissionLabels.put(label, labels);
+    return labels;
+  }
+
+  public long createNode(int[] labels) throws RuntimeException {
+    try {
+      return write.nodeCreateWithLabels(labels);
+    } catch (KernelException e){
+      throw new RuntimeException("error in creating node: " + e.getMessage());
+    }
+  }
+
+  private int propertyKey(AllProperties key) throws KernelException {
+    int token = this.propertyKeys[key.ordinal()];
+    if (token == -1){
+      token = tokens.propertyKeyGetOrCreateForName(key.name());
+      this.propertyKeys[key.ordinal()] = token;
+    }
+    return token;
+  }
+
+  public void setProperty(long nodeNeoId, AllProperties key, Value value) throws RuntimeException {
+    try {
+      write.nodeSetProperty(nodeNeoId, this.propertyKey(key), value);
+    } catch (KernelException e){
+      throw new RuntimeException("error in setting " + key + " on node " + nodeNeoId + ": " + e.getMessage());
+    }
+  }
+
+  // false if a uniqueness constraint finds the value on another node. the check
+  // waits for a concurrent transaction writing the same value to finish first.
+  public Boolean setUniqueProperty(long nodeNeoId, AllProperties key, String value) throws RuntimeException {
+    try {
+      write.nodeSetProperty(nodeNeoId, this.propertyKey(key), Values.stringValue(value));
+      return true;
+    } catch (UniquePropertyValueValidationException e){
+      return false;
+    } catch (KernelException e){
+      throw new RuntimeException("error in setting " + key + " on node " + nodeNeoId + ": " + e.getMessage());
+    }
+  }
+
+  public void setProperty(long nodeNeoId, AllProperties key, String value) throws RuntimeException {
+    this.setProperty(nodeNeoId, key, Values.stringValue(value));
+  }
+
+  public void setCreatedAt(long nodeNeoId) throws RuntimeException {
+    this.setProperty(nodeNeoId, AllProperties.createdAt, Values.of(ZonedDateTime.now()));
+  }
+
+  public long relate(long startNodeNeoId, NonPropertyRelationshipTypes type, long endNodeNeoId) throws RuntimeException {
+    try {
+      return write.relationshipCreate(startNodeNeoId, this.type(type), endNodeNeoId);
+    } catch (KernelException e){
+      throw new RuntimeException("error in creating " + type + " relationship " + startNodeNeoId + "->" + endNodeNeoId + ": " + e.getMessage());
+    }
+  }
+
+  // the other end of every relationship of the type, empty if the node doesn't exist
+  public HashSet<Long> getRelatedNodes(long nodeNeoId, NonPropertyRelationshipTypes type, Direction direction){
+    HashSet<Long> related = new HashSet<>();
+    if (!this.positionNode(nodeNeoId)){
+      return related;
+    }
+    RelationshipTraversalCursor rels = this.getRelationshipCursor();
+    this.nodeCursor.relationships(rels, RelationshipSelection.selection(this.type(type), direction));
+    while (rels.next()){
+      related.add(rels.otherNodeReference());
+    }
+    return related;
+  }
+
+  // walks the relationships from whichever end has fewer of them, as an SG's
+  // members are few and a user can be a member of every SG of a label
+  public Boolean isRelated(long startNodeNeoId, NonPropertyRelationshipTypes type, long endNodeNeoId){
+    if (!this.positionNode(endNodeNeoId)){
+      return false;
+    }
+    int endDegree = this.nodeCursor.degree(RelationshipSelection.selection(this.type(type), Direction.INCOMING));
+    if (!this.positionNode(startNodeNeoId)){
+      return false;
+    }
+    int startDegree = this.nodeCursor.degree(RelationshipSelection.selection(this.type(type), Direction.OUTGOING));
+
+    Boolean fromEnd = endDegree < startDegree;
+    if (fromEnd){
+      this.positionNode(endNodeNeoId);
+    }
+    long other = fromEnd ? startNodeNeoId : endNodeNeoId;
+    RelationshipTraversalCursor rels = this.getRelationshipCursor();
+    this.nodeCursor.relationships(rels, RelationshipSelection.selection(this.type(type), fromEnd ? Direction.INCOMING : Direction.OUTGOING));
+    while (rels.next()){
+      if (rels.otherNodeReference() == other){
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public Boolean hasRelationship(long nodeNeoId, NonPropertyRelationshipTypes type, Direction direction){
+    if (!this.positionNode(nodeNeoId)){
+      return false;
+    }
+    return this.nodeCursor.degree(RelationshipSelection.selection(this.type(type), direction)) > 0;
+  }
+
+  public void deleteNode(long nodeNeoId){
+    write.nodeDelete(nodeNeoId);
+  }
+
+  private Boolean positionNode(long nodeNeoId){
+    if (this.nodeCursor == null){
+      this.nodeCursor = ktx.cursors().allocateNodeCursor(ktx.pageCursorTracer());
+    }
+    read.singleNode(nodeNeoId, this.nodeCursor);
+    return this.nodeCursor.next();
+  }
+
+  private RelationshipTraversalCursor getRelationshipCursor(){
+    if (this.relationshipCursor == null){
+      this.relationshipCursor = ktx.cursors().allocateRelationshipTraversalCursor(ktx.pageCursorTracer());
+    }
+    return this.relationshipCursor;
+  }
+
+  @Override
+  public void close(){
+    if (this.nodeCursor != null){
+      this.nodeCursor.close();
+      this.nodeCursor = null;
+    }
+    if (this.relationshipCursor != null){
+      this.relationshipCursor.close();
+      this.relationshipCursor = null;
+    }
+  }
+}
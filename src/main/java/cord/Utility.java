@@ -3,11 +3,20 @@ package cord;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.neo4j.graphdb.*;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.api.txstate.TxStateHolder;
+import org.neo4j.kernel.impl.coreapi.InternalTransaction;
+import org.neo4j.storageengine.api.txstate.ReadableTransactionState;
 
+import cord.cache.LruCache;
+import cord.cache.ProjectMembers;
 import cord.common.AllProperties;
+import cord.common.AllRoles;
 import cord.common.BaseNodeLabels;
 import cord.common.RoleNames;
 import cord.model.*;
@@ -15,12 +24,10 @@ import cord.roles.BaseRole;
 
 public class Utility {
 
-  public static Long getNode(GraphDatabaseService db, String id, String label) throws RuntimeException {
-    try ( Transaction tx = db.beginTx() )
-    {
+  public static Long getNode(Transaction tx, String id, String label) throws RuntimeException {
+    try {
         Node node = tx.findNode(Label.label(label), "id", id);
         Long nodeNeoId = node.getId();
-        tx.commit();
         return nodeNeoId;
     } catch(Exception e){
       throw new RuntimeException("error in finding base node: " + label + " id:" + id);
@@ -28,177 +35,68 @@ public class Utility {
   }
 
   public static Long getProjectNode(
-    GraphDatabaseService db, 
+    Transaction tx, 
     Long baseNodeNeoId, 
     BaseNodeLabels label) {
+    return getProjectNode(tx, baseNodeNeoId, label, null);
+  }
+
+  // walks up from a project context node to its project. with a cache, every node
+  // on the walk is looked up and remembered, so siblings and descendants of a
+  // resolved node stop at their first cached ancestor.
+  public static Long getProjectNode(
+    Transaction tx, 
+    Long baseNodeNeoId, 
+    BaseNodeLabels label,
+    LruCache<Long, Long> cache) {
 
     Long projectNeoId = null;
-    try ( Transaction tx = db.beginTx() )
-    {
-      Node baseNode = tx.getNodeById(baseNodeNeoId);
-      Node nextNode = baseNode;
+    // nodes on the walk whose path to the project is committed
+    ArrayList<Long> cacheable = new ArrayList<>();
+    long stamp = cache == null ? 0 : cache.stamp();
+
+    try {
+      ReadableTransactionState txState = cache == null ? null : getTransactionState(tx);
+      // a transaction that removed relationships may have moved cached nodes
+      Boolean readCache = cache != null && (txState == null || txState.addedAndRemovedRelationships().getRemoved().isEmpty());
+
+      Node nextNode = tx.getNodeById(baseNodeNeoId);
       BaseNodeLabels nextLabel = label;
 
       while (projectNeoId == null){
-        switch (nextLabel){
-          case Project:
-            return nextNode.getId();
-          case File:
-          case FileNode:
-          case FileVersion:
-          case Directory:
-            if(nextNode.hasRelationship(
-              RelationshipType.withName(AllProperties.rootDirectory.name()))
-            ){
-              Relationship fromFileNodeRel = nextNode.getSingleRelationship(
-                RelationshipType.withName(AllProperties.rootDirectory.name()), Direction.INCOMING); 
-              nextNode = fromFileNodeRel.getStartNode();          
-              nextLabel = BaseNodeLabels.Project;
-              projectNeoId = nextNode.getId();
-            } else if (
-              nextNode.hasRelationship(
-                RelationshipType.withName(AllProperties.pnpNode.name()))
-            ){
-              Relationship fromFileNodeRel = nextNode.getSingleRelationship(
-                RelationshipType.withName(AllProperties.pnpNode.name()), Direction.INCOMING); 
-              nextNode = fromFileNodeRel.getStartNode();          
-              nextLabel = BaseNodeLabels.Engagement;
-            } else if (
-              nextNode.hasRelationship(
-                RelationshipType.withName(AllProperties.growthPlanNode.name()))
-            ){
-              Relationship fromFileNodeRel = nextNode.getSingleRelationship(
-                RelationshipType.withName(AllProperties.growthPlanNode.name()), Direction.INCOMING); 
-              nextNode = fromFileNodeRel.getStartNode();          
-              nextLabel = BaseNodeLabels.Engagement;
-            } else if (
-              nextNode.hasRelationship(
-                RelationshipType.withName(AllProperties.universalTemplateFileNode.name()))
-            ){
-              Relationship fromFileNodeRel = nextNode.getSingleRelationship(
-                RelationshipType.withName(AllProperties.universalTemplateFileNode.name()), Direction.INCOMING); 
-              nextNode = fromFileNodeRel.getStartNode();          
-              nextLabel = BaseNodeLabels.Budget;
-            } else if (
-              nextNode.hasRelationship(
-                RelationshipType.withName(AllProperties.mouNode.name()))
-            ){
-              Relationship fromFileNodeRel = nextNode.getSingleRelationship(
-                RelationshipType.withName(AllProperties.mouNode.name()), Direction.INCOMING); 
-              nextNode = fromFileNodeRel.getStartNode();          
-              nextLabel = BaseNodeLabels.Partnership;
-            } else if (
-              nextNode.hasRelationship(
-                RelationshipType.withName(AllProperties.agreementNode.name()))
-            ){
-              Relationship fromFileNodeRel = nextNode.getSingleRelationship(
-                RelationshipType.withName(AllProperties.agreementNode.name()), Direction.INCOMING); 
-              nextNode = fromFileNodeRel.getStartNode();          
-              nextLabel = BaseNodeLabels.Partnership;
-            } else {
-              Relationship fromFileNodeRel = nextNode.getSingleRelationship(
-                RelationshipType.withName(AllProperties.parent.name()), Direction.OUTGOING); 
-                if (fromFileNodeRel == null){
-                  System.out.println("file node rel is null for label " + nextLabel + " nextNodeNeoId: " + nextNode.getId());
-                  return null;
-                }
-              nextNode = fromFileNodeRel.getEndNode();            
-              nextLabel = BaseNodeLabels.FileNode;
-            }
-            break;
-          case Budget:
-            Relationship fromBudgetRel = nextNode.getSingleRelationship(
-              RelationshipType.withName(AllProperties.budget.name()), Direction.INCOMING); 
-              if (fromBudgetRel == null){
-                System.out.println("budget rel is null for label " + nextLabel + " nextNodeNeoId: " + nextNode.getId());
-                return null;
-              }
-            nextNode = fromBudgetRel.getStartNode();
-            nextLabel = BaseNodeLabels.Project;
-            projectNeoId = nextNode.getId();
-            break;
-          case BudgetRecord:
-            Relationship fromBudgetRecordRel = nextNode.getSingleRelationship(
-              RelationshipType.withName(AllProperties.record.name()), Direction.INCOMING); 
-              if (fromBudgetRecordRel == null){
-                System.out.println("budget record rel is null for label " + nextLabel + " nextNodeNeoId: " + nextNode.getId());
-                return null;
-              }
-            nextNode = fromBudgetRecordRel.getStartNode();
-            nextLabel = BaseNodeLabels.Budget;
-            break;
-          case Ceremony:
-            Relationship fromCeremonyRel = nextNode.getSingleRelationship(
-              RelationshipType.withName(AllProperties.ceremony.name()), Direction.INCOMING); 
-              if (fromCeremonyRel == null){
-                System.out.println("ceremony rel is null for label " + nextLabel + " nextNodeNeoId: " + nextNode.getId());
-                return null;
-              }
-            nextNode = fromCeremonyRel.getStartNode();
-            nextLabel = BaseNodeLabels.Engagement;
-            break;
-          case Engagement:
-          case InternshipEngagement:
-          case LanguageEngagement:
-            Relationship fromEngagementRel = nextNode.getSingleRelationship(
-              RelationshipType.withName(AllProperties.engagement.name()), Direction.INCOMING); 
-              if (fromEngagementRel == null){
-                System.out.println("engagement rel is null for label " + nextLabel + " nextNodeNeoId: " + nextNode.getId());
-                return null;
-              }
-            nextNode = fromEngagementRel.getStartNode();
-            nextLabel = BaseNodeLabels.Project;
-            projectNeoId = nextNode.getId();
-            break;
-          case Partner:
-            Relationship fromPartnerRel = nextNode.getSingleRelationship(
-              RelationshipType.withName(AllProperties.partner.name()), Direction.INCOMING); 
-              if (fromPartnerRel == null){
-                System.out.println("partner rel is null for label " + nextLabel + " nextNodeNeoId: " + nextNode.getId());
-                return null;
-              }
-            nextNode = fromPartnerRel.getStartNode();
-            nextLabel = BaseNodeLabels.Partnership;
-            break;
-          case Partnership:
-            Relationship fromPartnershipRel = nextNode.getSingleRelationship(
-              RelationshipType.withName(AllProperties.partnership.name()), Direction.INCOMING); 
-              if (fromPartnershipRel == null){
-                System.out.println("partnership rel is null for label " + nextLabel + " nextNodeNeoId: " + nextNode.getId());
-                return null;
-              }
-            nextNode = fromPartnershipRel.getStartNode();
-            nextLabel = BaseNodeLabels.Project;
-            projectNeoId = nextNode.getId();
-            break;
-          case Product:
-            Relationship fromProductRel = nextNode.getSingleRelationship(
-              RelationshipType.withName(AllProperties.product.name()), Direction.INCOMING); 
-              if (fromProductRel == null){
-                System.out.println("product rel is null for label " + nextLabel + " nextNodeNeoId: " + nextNode.getId());
-                return null;
-              }
-            nextNode = fromProductRel.getStartNode();
-            nextLabel = BaseNodeLabels.Engagement;
-            break;
-          case ProjectMember:
-            Relationship fromProjectMemberRel = nextNode.getSingleRelationship(
-              RelationshipType.withName(AllProperties.member.name()), Direction.INCOMING); 
-              if (fromProjectMemberRel == null){
-                System.out.println("ceremony rel is null for label " + nextLabel + " nextNodeNeoId: " + nextNode.getId());
-                return null;
-              }
-            nextNode = fromProjectMemberRel.getStartNode();
-            nextLabel = BaseNodeLabels.Project;
-            projectNeoId = nextNode.getId();
+        if (nextLabel == BaseNodeLabels.Project){
+          projectNeoId = nextNode.getId();
+          break;
+        }
+
+        if (readCache){
+          Long cached = cache.get(nextNode.getId());
+          if (cached != null && isProjectNode(tx, cached)){
+            projectNeoId = cached;
             break;
-          default: 
-            System.out.println("base node label not found in project nodes switch:" + nextLabel);
-            return null;
+          }
+        }
+
+        ProjectHop hop = getProjectHop(nextNode, nextLabel);
+        if (hop == null){
+          return null;
+        }
+
+        // anything created by this transaction would be cached past a rollback
+        if (txState != null && (txState.nodeIsAddedInThisTx(nextNode.getId()) 
+          || txState.relationshipIsAddedInThisTx(hop.rel.getId()))){
+          cacheable.clear();
+        } else {
+          cacheable.add(nextNode.getId());
         }
+
+        nextNode = hop.node;
+        nextLabel = hop.label;
       }
 
-      tx.commit();
+      if (txState != null && txState.nodeIsAddedInThisTx(projectNeoId)){
+        cacheable.clear();
+      }
 
     } catch(Exception e){
       e.printStackTrace();
@@ -206,18 +104,180 @@ public class Utility {
       throw new RuntimeException("error in finding project node");
     }
 
+    if (cache != null){
+      for (Long nodeNeoId: cacheable){
+        cache.put(nodeNeoId, projectNeoId, stamp);
+      }
+    }
+
     return projectNeoId;
   }
 
-  public static ArrayList<Long> getProjectMembers(GraphDatabaseService db, Long projectNodeNeoId) throws RuntimeException {
+  private static class ProjectHop {
+    Relationship rel;
+    Node node;
+    BaseNodeLabels label;
+
+    ProjectHop(Relationship rel, Node node, BaseNodeLabels label){
+      this.rel = rel;
+      this.node = node;
+      this.label = label;
+    }
+  }
+
+  // relationship types leading from a file node to the node that holds it, in order of precedence
+  private static final AllProperties[] FILE_HOLDERS = {
+    AllProperties.rootDirectory,
+    AllProperties.pnpNode,
+    AllProperties.growthPlanNode,
+    AllProperties.universalTemplateFileNode,
+    AllProperties.mouNode,
+    AllProperties.agreementNode
+  };
+
+  private static final BaseNodeLabels[] FILE_HOLDER_LABELS = {
+    BaseNodeLabels.Project,
+    BaseNodeLabels.Engagement,
+    BaseNodeLabels.Engagement,
+    BaseNodeLabels.Budget,
+    BaseNodeLabels.Partnership,
+    BaseNodeLabels.Partnership
+  };
+
+  private static final RelationshipType[] FILE_HOLDER_TYPES = Arrays.stream(FILE_HOLDERS)
+    .map(type -> RelationshipType.withName(type.name()))
+    .toArray(RelationshipType[]::new);
+
+  // relationship types a project context node can hang off on its way to the project
+  public static final HashSet<String> PROJECT_PATH_RELATIONSHIPS = new HashSet<>(Arrays.asList(
+    AllProperties.rootDirectory.name(),
+    AllProperties.pnpNode.name(),
+    AllProperties.growthPlanNode.name(),
+    AllProperties.universalTemplateFileNode.name(),
+    AllProperties.mouNode.name(),
+    AllProperties.agreementNode.name(),
+    AllProperties.parent.name(),
+    AllProperties.budget.name(),
+    AllProperties.record.name(),
+    AllProperties.ceremony.name(),
+    AllProperties.engagement.name(),
+    AllProperties.partner.name(),
+    AllProperties.partnership.name(),
+    AllProperties.product.name(),
+    AllProperties.member.name()
+  ));
+
+  // one step towards the project, null if the node isn't connected
+  private static ProjectHop getProjectHop(Node node, BaseNodeLabels label){
+    switch (label){
+      case File:
+      case FileNode:
+      case FileVersion:
+      case Directory:
+        // a single pass over the holder relationships instead of one check per type
+        Relationship holderRel = null;
+        int holder = FILE_HOLDERS.length;
+        for (Relationship rel: node.getRelationships(Direction.INCOMING, FILE_HOLDER_TYPES)){
+          for (int i = 0; i < holder; i++){
+            if (rel.isType(FILE_HOLDER_TYPES[i])){
+              holderRel = rel;
+              holder = i;
+              break;
+            }
+          }
+        }
+        if (holderRel != null){
+          return new ProjectHop(holderRel, holderRel.getStartNode(), FILE_HOLDER_LABELS[holder]);
+        }
+
+        Relationship parentRel = node.getSingleRelationship(
+          RelationshipType.withName(AllProperties.parent.name()), Direction.OUTGOING); 
+        if (parentRel == null){
+          System.out.println("file node rel is null for label " + label + " nextNodeNeoId: " + node.getId());
+          return null;
+        }
+        return new ProjectHop(parentRel, parentRel.getEndNode(), BaseNodeLabels.FileNode);
+      case Budget:
+        return getIncomingHop(node, label, AllProperties.budget, BaseNodeLabels.Project);
+      case BudgetRecord:
+        return getIncomingHop(node, label, AllProperties.record, BaseNodeLabels.Budget);
+      case Ceremony:
+        return getIncomingHop(node, label, AllProperties.ceremony, BaseNodeLabels.Engagement);
+      case Engagement:
+      case InternshipEngagement:
+      case LanguageEngagement:
+        return getIncomingHop(node, label, AllProperties.engagement, BaseNodeLabels.Project);
+      case Partner:
+        return getIncomingHop(node, label, AllProperties.partner, BaseNodeLabels.Partnership);
+      case Partnership:
+        return getIncomingHop(node, label, AllProperties.partnership, BaseNodeLabels.Project);
+      case Product:
+        return getIncomingHop(node, label, AllProperties.product, BaseNodeLabels.Engagement);
+      case ProjectMember:
+        return getIncomingHop(node, label, AllProperties.member, BaseNodeLabels.Project);
+      default: 
+        System.out.println("base node label not found in project nodes switch:" + label);
+        return null;
+    }
+  }
+
+  private static ProjectHop getIncomingHop(Node node, BaseNodeLabels label, AllProperties type, BaseNodeLabels nextLabel){
+    Relationship rel = node.getSingleRelationship(RelationshipType.withName(type.name()), Direction.INCOMING); 
+    if (rel == null){
+      System.out.println(type.name() + " rel is null for label " + label + " nextNodeNeoId: " + node.getId());
+      return null;
+    }
+    return new ProjectHop(rel, rel.getStartNode(), nextLabel);
+  }
+
+  // the project context nodes under a project, the reverse of the getProjectNode walk
+  public static ArrayList<Long> getProjectContextNodes(Transaction tx, Long projectNeoId){
+    RelationshipType[] childTypes = PROJECT_PATH_RELATIONSHIPS.stream()
+      .filter(type -> !type.equals(AllProperties.parent.name()))
+      .map(RelationshipType::withName)
+      .toArray(RelationshipType[]::new);
+    RelationshipType parent = RelationshipType.withName(AllProperties.parent.name());
+
+    ArrayList<Long> nodes = new ArrayList<>();
+    HashSet<Long> visited = new HashSet<>();
+    ArrayList<Node> frontier = new ArrayList<>();
+    frontier.add(tx.getNodeById(projectNeoId));
+    visited.add(projectNeoId);
+    nodes.add(projectNeoId);
+
+    while (!frontier.isEmpty()){
+      Node node = frontier.remove(frontier.size() - 1);
+      ArrayList<Node> children = new ArrayList<>();
+      node.getRelationships(Direction.OUTGOING, childTypes).forEach(rel -> children.add(rel.getEndNode()));
+      node.getRelationships(Direction.INCOMING, parent).forEach(rel -> children.add(rel.getStartNode()));
+
+      for (Node child: children){
+        BaseNodeLabels label = getBaseNodeLabel(child);
+        if (label == null || label == BaseNodeLabels.Project || !isProjectContextNode(label) || !visited.add(child.getId())){
+          continue;
+        }
+        nodes.add(child.getId());
+        frontier.add(child);
+      }
+    }
+    return nodes;
+  }
+
+  private static Boolean isProjectNode(Transaction tx, Long nodeNeoId){
+    try {
+      return tx.getNodeById(nodeNeoId).hasLabel(Label.label(BaseNodeLabels.Project.name()));
+    } catch (NotFoundException e){
+      return false;
+    }
+  }
+
+  public static ArrayList<Long> getProjectMembers(Transaction tx, Long projectNodeNeoId) throws RuntimeException {
     ArrayList<Long> members = new ArrayList<Long>();
-    try ( Transaction tx = db.beginTx() )
-    {
+    try {
       Node projectNode = tx.getNodeById(projectNodeNeoId);
       Iterable<Relationship> iter = projectNode.getRelationships(Direction.OUTGOING, 
         RelationshipType.withName(AllProperties.member.name()));
       iter.forEach(rel -> members.add(rel.getEndNode().getId()));
-      tx.commit();
     } catch(Exception e){
       e.printStackTrace();
       throw new RuntimeException("error in finding project member: " + projectNodeNeoId);
@@ -225,6 +285,116 @@ public class Utility {
     return members;
   }
 
+  // active fe role names of a user or project member, read from its roles Property nodes
+  public static ArrayList<String> getActiveRoles(Node node){
+    ArrayList<String> activeRoles = new ArrayList<>();
+    for (Relationship rel: node.getRelationships(Direction.OUTGOING,
+      RelationshipType.withName(AllProperties.roles.name()))){
+
+      if ((Boolean)rel.getProperty(AllProperties.active.name(), false) == false){
+        continue;
+      }
+      Object roles = rel.getEndNode().getProperty(AllProperties.value.name(), null);
+      if (roles instanceof String[]){
+        activeRoles.addAll(Arrays.asList((String[]) roles));
+      }
+    }
+    return activeRoles;
+  }
+
+  // one pass over all users, resolving the user node neo ids of every global role at once
+  public static HashMap<RoleNames, ArrayList<Long>> getGlobalRoleUsers(Transaction tx) throws RuntimeException {
+
+    // fe role name -> global roles granted by it
+    HashMap<String, ArrayList<RoleNames>> feRoles = new HashMap<>();
+    HashMap<RoleNames, ArrayList<Long>> users = new HashMap<>();
+    for (BaseRole role: AllRoles.getInstance().globalRolesList()){
+      feRoles.computeIfAbsent(AllRoles.getFrontendRoleNameFromApiRoleName(role.roleName), key -> new ArrayList<>())
+        .add(role.roleName);
+      users.put(role.roleName, new ArrayList<Long>());
+    }
+
+    try (ResourceIterator<Node> iter = tx.findNodes(Label.label(BaseNodeLabels.User.name()))) {
+      while (iter.hasNext()){
+        Node user = iter.next();
+        HashSet<RoleNames> userRoles = new HashSet<>();
+        for (String feRole: getActiveRoles(user)){
+          ArrayList<RoleNames> roles = feRoles.get(feRole);
+          if (roles != null){
+            userRoles.addAll(roles);
+          }
+        }
+        userRoles.forEach(role -> users.get(role).add(user.getId()));
+      }
+    } catch(Exception e){
+      e.printStackTrace();
+      throw new RuntimeException("error in finding global role users");
+    }
+
+    return users;
+  }
+
+  // members of a project with their project roles merged per user, so a user
+  // listed twice or holding a role twice still appears once
+  public static ProjectMembers resolveProjectMembers(Transaction tx, Long projectNodeNeoId) throws RuntimeException {
+    LinkedHashMap<Long, Integer> userRoles = new LinkedHashMap<>();
+    try {
+      for (Long memberNodeNeoId: getProjectMembers(tx, projectNodeNeoId)){
+        Node memberNode = tx.getNodeById(memberNodeNeoId);
+
+        // get member's user node
+        Relationship toUser = memberNode.getSingleRelationship(
+          RelationshipType.withName(AllProperties.user.name()),
+          Direction.OUTGOING);
+        if (toUser == null){
+          System.out.println("project member has no user. memberNodeNeoId: " + memberNodeNeoId);
+          continue;
+        }
+        Long userNodeNeoId = toUser.getEndNodeId();
+
+        // get member's roles
+        int roles = userRoles.getOrDefault(userNodeNeoId, 0);
+        for (String role: getActiveRoles(memberNode)){
+          RoleNames dbRole = AllRoles.getRoleNameEnumFromFeString(role, true);
+          if (dbRole == null){
+            System.out.println("project role not found: " + role);
+            continue;
+          }
+          roles |= ProjectMembers.roleBit(dbRole);
+        }
+        userRoles.put(userNodeNeoId, roles);
+      }
+    } catch(Exception e){
+      e.printStackTrace();
+      throw new RuntimeException("error in processing project member");
+    }
+
+    long[] users = new long[userRoles.size()];
+    int[] roles = new int[userRoles.size()];
+    int i = 0;
+    for (Map.Entry<Long, Integer> entry: userRoles.entrySet()){
+      users[i] = entry.getKey();
+      roles[i] = entry.getValue();
+      i++;
+    }
+    return new ProjectMembers(users, roles);
+  }
+
+  // true if the transaction has written anything yet. shared caches hold
+  // committed state only, so they are bypassed by transactions with pending writes.
+  public static Boolean hasPendingChanges(Transaction tx){
+    return ((InternalTransaction) tx).kernelTransaction().dataRead().transactionStateHasChanges();
+  }
+
+  // the transaction's pending writes, null if it has none
+  public static ReadableTransactionState getTransactionState(Transaction tx){
+    KernelTransaction ktx = ((InternalTransaction) tx).kernelTransaction();
+    if (!(ktx instanceof TxStateHolder) || !((TxStateHolder) ktx).hasTxStateWithChanges()){
+      return null;
+    }
+    return ((TxStateHolder) ktx).txState();
+  }
+
   public static BaseNodeLabels baseNodeClassStringToEnum(String className) throws RuntimeException {
     switch (className){
       case "BaseNode":                return BaseNodeLabels.BaseNode;
@@ -262,22 +432,35 @@ public class Utility {
     }
   }
 
-  public static ArrayList<BaseNodeLabels> getBaseNodeLabels(GraphDatabaseService db, String id) throws RuntimeException {
-    try ( Transaction tx = db.beginTx() )
-    {
+  public static ArrayList<BaseNodeLabels> getBaseNodeLabels(Transaction tx, String id) throws RuntimeException {
+    try {
         Node BaseNodeLabels = tx.findNode(Label.label("BaseNodeLabels"), "id", id);
         Iterable<Label> labels = BaseNodeLabels.getLabels();
         ArrayList<BaseNodeLabels> labelArray = new ArrayList<BaseNodeLabels>();
         labels.forEach((label) -> {
           labelArray.add(baseNodeClassStringToEnum(label.name() ));
         });
-        tx.commit();
         return labelArray;
     } catch(Exception e){
       throw new RuntimeException("error in finding base node lables: " + id);
     }
   }
 
+  // the model label of a base node, skipping the shared labels that have no model
+  public static BaseNodeLabels getBaseNodeLabel(Node node){
+    for (Label label: node.getLabels()){
+      try {
+        BaseNodeLabels baseNodeLabel = BaseNodeLabels.valueOf(label.name());
+        if (getBaseNodePropertiesByLabel(baseNodeLabel) != null){
+          return baseNodeLabel;
+        }
+      } catch (IllegalArgumentException e){
+        continue;
+      }
+    }
+    return null;
+  }
+
   public static Boolean isProjectContextNode(BaseNodeLabels label){
     switch (label){   
       case Budget:                
@@ -300,7 +483,7 @@ public class Utility {
     }
   }
 
-  public static Long getSecurityGroupNode(GraphDatabaseService db, BaseRole role, String baseNodeId, BaseNodeLabels label) throws RuntimeException {
+  public static Long getSecurityGroupNode(Transaction tx, BaseRole role, String baseNodeId, BaseNodeLabels label) throws RuntimeException {
 
     Map<String, Object> params = new HashMap<>();
     // params.put("role", role);                      // todo
@@ -310,7 +493,6 @@ public class Utility {
     Long sg = null;
 
     try ( 
-      Transaction tx = db.beginTx();
       Result result = tx.execute(
         "MATCH (sg:SecurityGroup {role: $role})-[:baseNode]->(baseNode:"+label.name()+" {id:$baseNodeId}) " +
         "RETURN id(sg) as id",
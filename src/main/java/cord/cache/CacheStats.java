@@ -0,0 +1,21 @@
+package cord.cache;
+
+public class CacheStats {
+  public String name;
+  public Long hits;
+  public Long misses;
+  public Long rebuilds;
+  public Long invalidations;
+  public Long size;
+  public Double hitRate;
+
+  public CacheStats(String name, long hits, long misses, long rebuilds, long invalidations, long size){
+    this.name = name;
+    this.hits = hits;
+    this.misses = misses;
+    this.rebuilds = rebuilds;
+    this.invalidations = invalidations;
+    this.size = size;
+    this.hitRate = hits + misses == 0 ? 0.0 : (double) hits / (hits + misses);
+  }
+}
@@ -0,0 +1,111 @@
+package cord.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.*;
+
+import cord.Utility;
+import cord.common.BaseNodeLabels;
+
+// fe role name -> node neo ids of the users holding it through an active roles Property.
+// Built by one scan of the users on first use, then patched per user on every
+// commit that touches a user's roles, so readers always get a ready-made array.
+public class GlobalRoleIndex {
+
+  private static final long[] NONE = new long[0];
+
+  // user node neo id -> active fe role names
+  private final HashMap<Long, List<String>> userRoles = new HashMap<>();
+  private volatile Map<String, long[]> roleUsers = new HashMap<>();
+  private volatile boolean valid = false;
+  // bumped by every change, so a rebuild racing a commit is not trusted
+  private long version = 0;
+
+  private final AtomicLong hits = new AtomicLong();
+  // lookups that found the index invalid, and the scans they ran. a scan that
+  // raced a commit leaves the index invalid, so the next lookup misses again
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong rebuilds = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  public long[] getUsers(Transaction tx, String feRoleName){
+    if (!this.valid){
+      this.misses.incrementAndGet();
+      this.rebuild(tx);
+    } else {
+      this.hits.incrementAndGet();
+    }
+    return this.roleUsers.getOrDefault(feRoleName, NONE);
+  }
+
+  private void rebuild(Transaction tx){
+    long startVersion;
+    synchronized (this){
+      startVersion = this.version;
+    }
+
+    HashMap<Long, List<String>> scanned = new HashMap<>();
+    try (ResourceIterator<Node> iter = tx.findNodes(Label.label(BaseNodeLabels.User.name()))) {
+      while (iter.hasNext()){
+        Node user = iter.next();
+        ArrayList<String> roles = Utility.getActiveRoles(user);
+        if (!roles.isEmpty()){
+          scanned.put(user.getId(), roles);
+        }
+      }
+    }
+
+    synchronized (this){
+      this.userRoles.clear();
+      this.userRoles.putAll(scanned);
+      this.roleUsers = this.buildRoleUsers();
+      this.valid = this.version == startVersion;
+    }
+    this.rebuilds.incrementAndGet();
+  }
+
+  // changes maps each touched user to its active roles after the commit, empty if deleted
+  public synchronized void applyChanges(Map<Long, List<String>> changes){
+    this.version++;
+    if (!this.valid){
+      return;
+    }
+    changes.forEach((userNeoId, roles) -> {
+      if (roles.isEmpty()){
+        this.userRoles.remove(userNeoId);
+      } else {
+        this.userRoles.put(userNeoId, roles);
+      }
+    });
+    this.roleUsers = this.buildRoleUsers();
+    this.invalidations.incrementAndGet();
+  }
+
+  public synchronized void invalidate(){
+    this.version++;
+    this.valid = false;
+    this.invalidations.incrementAndGet();
+  }
+
+  private Map<String, long[]> buildRoleUsers(){
+    HashMap<String, ArrayList<Long>> lists = new HashMap<>();
+    this.userRoles.forEach((userNeoId, roles) -> roles.stream().distinct().forEach(role ->
+      lists.computeIfAbsent(role, key -> new ArrayList<>()).add(userNeoId)));
+
+    HashMap<String, long[]> built = new HashMap<>();
+    lists.forEach((role, users) -> built.put(role, users.stream().mapToLong(Long::longValue).toArray()));
+    return built;
+  }
+
+  public CacheStats getStats(){
+    int size;
+    synchronized (this){
+      size = this.userRoles.size();
+    }
+    return new CacheStats("globalRoleIndex", this.hits.get(), this.misses.get(), this.rebuilds.get(), this.invalidations.get(), size);
+  }
+}
@@ -0,0 +1,74 @@
+package cord.cache;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+// Bounded least-recently-used map with hit statistics. Resolutions are stamped
+// with the cache version they started at, so a value computed while a commit
+// invalidated the cache is dropped instead of stored.
+public class LruCache<K, V> {
+
+  private final String name;
+  private final LinkedHashMap<K, V> entries;
+  private long version = 0;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  public LruCache(String name, int capacity){
+    this.name = name;
+    this.entries = new LinkedHashMap<K, V>(16, 0.75f, true){
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, V> eldest){
+        return this.size() > capacity;
+      }
+    };
+  }
+
+  public synchronized V get(K key){
+    V value = this.entries.get(key);
+    if (value == null){
+      this.misses.incrementAndGet();
+    } else {
+      this.hits.incrementAndGet();
+    }
+    return value;
+  }
+
+  public synchronized long stamp(){
+    return this.version;
+  }
+
+  public synchronized void put(K key, V value, long stamp){
+    if (stamp == this.version){
+      this.entries.put(key, value);
+    }
+  }
+
+  public synchronized void invalidate(Collection<K> keys){
+    this.version++;
+    keys.forEach(this.entries::remove);
+    this.invalidations.incrementAndGet();
+  }
+
+  // for keys that can't be listed, such as every entry of one user
+  public synchronized void invalidateIf(Predicate<K> matches){
+    this.version++;
+    this.entries.keySet().removeIf(matches);
+    this.invalidations.incrementAndGet();
+  }
+
+  public synchronized void invalidateAll(){
+    this.version++;
+    this.entries.clear();
+    this.invalidations.incrementAndGet();
+  }
+
+  public synchronized CacheStats getStats(){
+    return new CacheStats(this.name, this.hits.get(), this.misses.get(), 0, this.invalidations.get(), this.entries.size());
+  }
+}
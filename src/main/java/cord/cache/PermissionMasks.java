@@ -0,0 +1,67 @@
+package cord.cache;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import cord.PermissionMatrix;
+import cord.common.BaseNodeLabels;
+import cord.common.RoleNames;
+import cord.model.Perm;
+
+// The grants of a set of roles on every property of every label, one read and
+// one edit bitmask per label indexed by property ordinal. Users holding the
+// same roles share one instance, so the (user, project) cache only holds references.
+public class PermissionMasks {
+
+  // role bits, see ProjectMembers.roleBit, -> masks
+  private static final ConcurrentHashMap<Integer, PermissionMasks> byRoles = new ConcurrentHashMap<>();
+
+  private final BitSet[] read;
+  private final BitSet[] edit;
+
+  private PermissionMasks(int roles){
+    PermissionMatrix matrix = PermissionMatrix.getInstance();
+    BaseNodeLabels[] labels = BaseNodeLabels.values();
+    this.read = new BitSet[labels.length];
+    this.edit = new BitSet[labels.length];
+
+    for (BaseNodeLabels label: labels){
+      List<String> model = matrix.getProperties(label);
+      if (model == null){
+        continue;
+      }
+      this.read[label.ordinal()] = new BitSet(model.size());
+      this.edit[label.ordinal()] = new BitSet(model.size());
+
+      for (RoleNames role: RoleNames.values()){
+        if ((roles & ProjectMembers.roleBit(role)) == 0){
+          continue;
+        }
+        for (int i = 0; i < model.size(); i++){
+          Perm perm = matrix.get(role, label, i);
+          if (perm != Perm.NO){
+            this.read[label.ordinal()].set(i);
+          }
+          if (perm == Perm.RW){
+            this.edit[label.ordinal()].set(i);
+          }
+        }
+      }
+    }
+  }
+
+  public static PermissionMasks forRoles(int roles){
+    return byRoles.computeIfAbsent(roles, PermissionMasks::new);
+  }
+
+  public Boolean canRead(BaseNodeLabels label, int propertyOrdinal){
+    BitSet mask = this.read[label.ordinal()];
+    return mask != null && propertyOrdinal >= 0 && mask.get(propertyOrdinal);
+  }
+
+  public Boolean canEdit(BaseNodeLabels label, int propertyOrdinal){
+    BitSet mask = this.edit[label.ordinal()];
+    return mask != null && propertyOrdinal >= 0 && mask.get(propertyOrdinal);
+  }
+}
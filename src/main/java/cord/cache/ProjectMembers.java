@@ -0,0 +1,45 @@
+package cord.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import cord.common.RoleNames;
+
+// The resolved members of one project: users[i] holds the roles set in roles[i],
+// one bit per RoleNames ordinal.
+public class ProjectMembers {
+
+  public final long[] users;
+  public final int[] roles;
+
+  public ProjectMembers(long[] users, int[] roles){
+    this.users = users;
+    this.roles = roles;
+  }
+
+  public static int roleBit(RoleNames role){
+    return 1 << role.ordinal();
+  }
+
+  public HashMap<RoleNames, ArrayList<Long>> byRole(){
+    HashMap<RoleNames, ArrayList<Long>> byRole = new HashMap<>();
+    for (int i = 0; i < this.users.length; i++){
+      for (RoleNames role: RoleNames.values()){
+        if ((this.roles[i] & roleBit(role)) != 0){
+          byRole.computeIfAbsent(role, key -> new ArrayList<Long>()).add(this.users[i]);
+        }
+      }
+    }
+    return byRole;
+  }
+
+  // the user's project roles, 0 if not a member
+  public int getRoles(long userNeoId){
+    for (int i = 0; i < this.users.length; i++){
+      if (this.users[i] == userNeoId){
+        return this.roles[i];
+      }
+    }
+    return 0;
+  }
+}
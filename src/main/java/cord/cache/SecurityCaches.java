@@ -0,0 +1,57 @@
+package cord.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// In-memory security structures of one database. They are kept current by
+// SecurityEventListener, which CordExtensionFactory registers per database.
+public class SecurityCaches {
+
+  private static final ConcurrentHashMap<String, SecurityCaches> databases = new ConcurrentHashMap<>();
+
+  private static final int PROJECT_MEMBERS_CAPACITY = 10000;
+  private static final int PROJECT_NODES_CAPACITY = 100000;
+  private static final int PROJECT_MASKS_CAPACITY = 100000;
+
+  public final GlobalRoleIndex globalRoleIndex = new GlobalRoleIndex();
+  // project node neo id -> resolved members and project roles
+  public final LruCache<Long, ProjectMembers> projectMembers = new LruCache<>("projectMembers", PROJECT_MEMBERS_CAPACITY);
+  // project context node neo id -> project node neo id
+  public final LruCache<Long, Long> projectNodes = new LruCache<>("projectNodes", PROJECT_NODES_CAPACITY);
+  // (user, project) -> the user's effective grants on the project's nodes
+  public final LruCache<UserProject, PermissionMasks> projectMasks = new LruCache<>("projectMasks", PROJECT_MASKS_CAPACITY);
+
+  public static final class UserProject {
+    public final long user;
+    public final long project;
+
+    public UserProject(long user, long project){
+      this.user = user;
+      this.project = project;
+    }
+
+    @Override
+    public boolean equals(Object other){
+      return other instanceof UserProject && ((UserProject) other).user == this.user && ((UserProject) other).project == this.project;
+    }
+
+    @Override
+    public int hashCode(){
+      return Long.hashCode(this.user) * 31 + Long.hashCode(this.project);
+    }
+  }
+
+  public static SecurityCaches forDatabase(String databaseName){
+    return databases.computeIfAbsent(databaseName, name -> new SecurityCaches());
+  }
+
+  public static void remove(String databaseName){
+    databases.remove(databaseName);
+  }
+
+  public void invalidateAll(){
+    this.globalRoleIndex.invalidate();
+    this.projectMembers.invalidateAll();
+    this.projectNodes.invalidateAll();
+    this.projectMasks.invalidateAll();
+  }
+}
@@ -0,0 +1,174 @@
+package cord.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventListener;
+
+import cord.Utility;
+import cord.common.AllProperties;
+import cord.common.BaseNodeLabels;
+
+// Works out in beforeCommit, while the transaction can still be read, which
+// cached entries a commit affects, and applies that to the caches in afterCommit.
+public class SecurityEventListener implements TransactionEventListener<SecurityEventListener.Changes> {
+
+  private static final RelationshipType ROLES = RelationshipType.withName(AllProperties.roles.name());
+  private static final RelationshipType USER_REL = RelationshipType.withName(AllProperties.user.name());
+  private static final RelationshipType MEMBER = RelationshipType.withName(AllProperties.member.name());
+  private static final Label USER = Label.label(BaseNodeLabels.User.name());
+  private static final Label PROJECT = Label.label(BaseNodeLabels.Project.name());
+  private static final Label PROJECT_MEMBER = Label.label(BaseNodeLabels.ProjectMember.name());
+
+  private final SecurityCaches caches;
+
+  public SecurityEventListener(SecurityCaches caches){
+    this.caches = caches;
+  }
+
+  public static class Changes {
+    // user node neo id -> active roles after the commit, empty if the user was deleted
+    HashMap<Long, List<String>> users = new HashMap<>();
+    // project node neo ids whose members or member roles changed
+    HashSet<Long> projects = new HashSet<>();
+    // a relationship on the way from a node to its project was removed
+    Boolean projectPaths = false;
+    Boolean invalidateAll = false;
+
+    Boolean isEmpty(){
+      return !this.invalidateAll && !this.projectPaths && this.users.isEmpty() && this.projects.isEmpty();
+    }
+  }
+
+  @Override
+  public Changes beforeCommit(TransactionData data, Transaction tx, GraphDatabaseService db) throws Exception {
+    Changes changes = new Changes();
+
+    try {
+      HashSet<Long> deletedNodes = new HashSet<>();
+      data.deletedNodes().forEach(node -> deletedNodes.add(node.getId()));
+
+      // nodes that own a roles or user relationship that was created, deleted or (de)activated
+      HashSet<Long> roleOwners = new HashSet<>();
+      // start nodes of member relationships, projects or security groups
+      HashSet<Long> memberOwners = new HashSet<>();
+      for (Relationship rel: data.createdRelationships()){
+        this.addChangedRelationship(rel, roleOwners, memberOwners);
+      }
+      // start nodes of removed member relationships, the project ones are on project paths
+      HashSet<Long> removedMemberOwners = new HashSet<>();
+      for (Relationship rel: data.deletedRelationships()){
+        this.addChangedRelationship(rel, roleOwners, memberOwners);
+        if (rel.isType(MEMBER)){
+          removedMemberOwners.add(rel.getStartNodeId());
+        } else if (Utility.PROJECT_PATH_RELATIONSHIPS.contains(rel.getType().name())){
+          changes.projectPaths = true;
+        }
+      }
+      for (PropertyEntry<Relationship> entry: data.assignedRelationshipProperties()){
+        this.addChangedRelationship(entry.entity(), roleOwners, memberOwners);
+      }
+
+      for (Long ownerNeoId: memberOwners){
+        if (deletedNodes.contains(ownerNeoId) || tx.getNodeById(ownerNeoId).hasLabel(PROJECT)){
+          changes.projects.add(ownerNeoId);
+          if (removedMemberOwners.contains(ownerNeoId)){
+            changes.projectPaths = true;
+          }
+        }
+      }
+
+      // Property nodes whose role values changed
+      for (PropertyEntry<Node> entry: data.assignedNodeProperties()){
+        if (entry.key().equals(AllProperties.value.name())){
+          this.addRolesPropertyOwners(data, entry.entity(), roleOwners);
+        }
+      }
+      for (PropertyEntry<Node> entry: data.removedNodeProperties()){
+        if (entry.key().equals(AllProperties.value.name())){
+          this.addRolesPropertyOwners(data, entry.entity(), roleOwners);
+        }
+      }
+
+      // deleted users and projects
+      for (LabelEntry entry: data.removedLabels()){
+        if (entry.label().equals(USER)) changes.users.put(entry.node().getId(), new ArrayList<>());
+        if (entry.label().equals(PROJECT)){
+          changes.projects.add(entry.node().getId());
+          changes.projectPaths = true;
+        }
+      }
+
+      for (Long ownerNeoId: roleOwners){
+        if (changes.users.containsKey(ownerNeoId) || deletedNodes.contains(ownerNeoId)){
+          continue; // a deleted ProjectMember also loses its member relationship
+        }
+        Node owner = tx.getNodeById(ownerNeoId);
+        if (owner.hasLabel(USER)){
+          changes.users.put(ownerNeoId, Utility.getActiveRoles(owner));
+        }
+        if (owner.hasLabel(PROJECT_MEMBER)){
+          for (Relationship rel: owner.getRelationships(Direction.INCOMING, MEMBER)){
+            changes.projects.add(rel.getStartNodeId());
+          }
+        }
+      }
+
+    } catch (Exception e){
+      // anything we can't attribute is handled by dropping the caches
+      changes.invalidateAll = true;
+    }
+
+    return changes.isEmpty() ? null : changes;
+  }
+
+  private void addChangedRelationship(Relationship rel, HashSet<Long> roleOwners, HashSet<Long> memberOwners){
+    if (rel.isType(ROLES) || rel.isType(USER_REL)){
+      roleOwners.add(rel.getStartNodeId());
+    } else if (rel.isType(MEMBER)){
+      memberOwners.add(rel.getStartNodeId());
+    }
+  }
+
+  private void addRolesPropertyOwners(TransactionData data, Node propertyNode, HashSet<Long> roleOwners){
+    if (data.isDeleted(propertyNode)){
+      return; // its roles relationship was deleted too
+    }
+    for (Relationship rel: propertyNode.getRelationships(Direction.INCOMING, ROLES)){
+      roleOwners.add(rel.getStartNodeId());
+    }
+  }
+
+  @Override
+  public void afterCommit(TransactionData data, Changes changes, GraphDatabaseService db){
+    if (changes == null){
+      return;
+    }
+    if (changes.invalidateAll){
+      this.caches.invalidateAll();
+      return;
+    }
+    if (!changes.users.isEmpty()){
+      this.caches.globalRoleIndex.applyChanges(changes.users);
+      this.caches.projectMasks.invalidateIf(key -> changes.users.containsKey(key.user));
+    }
+    if (!changes.projects.isEmpty()){
+      this.caches.projectMembers.invalidate(changes.projects);
+      this.caches.projectMasks.invalidateIf(key -> changes.projects.contains(key.project));
+    }
+    if (changes.projectPaths){
+      // nodes don't know their descendants, so every resolved path is dropped
+      this.caches.projectNodes.invalidateAll();
+    }
+  }
+
+  @Override
+  public void afterRollback(TransactionData data, Changes changes, GraphDatabaseService db){
+  }
+}
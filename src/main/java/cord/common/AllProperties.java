@@ -137,7 +137,22 @@ public enum AllProperties {
   initialMouEnd,
   stepChangedAt,
   owningOrganization,
-  partners
+  partners,
+
+  key,
+  label,
+  storage,
+
+  baseNodeId,
+  creatorUserId,
+  enqueuedAt,
+  attempts,
+  error,
+  lastNodeId,
+  processed,
+  failed,
+  readMask,
+  editMask,
 }           
       
 
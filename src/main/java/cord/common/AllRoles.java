@@ -1,11 +1,16 @@
 package cord.common;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
 
 import cord.roles.*;
 
 public class AllRoles {
+  // role objects are stateless, so one registry is shared by every procedure call
+  private static final AllRoles instance = new AllRoles();
+
   public Administrator Administrator;
   public Consultant Consultant;
   public ConsultantManager ConsultantManager;
@@ -26,6 +31,15 @@ public class AllRoles {
   public StaffMember StaffMember;
   public Translator Translator;
 
+  private final EnumMap<RoleNames, BaseRole> roles = new EnumMap<>(RoleNames.class);
+  private final List<BaseRole> allRoles;
+  private final List<BaseRole> globalRoles;
+  private final List<BaseRole> projectRoles;
+
+  public static AllRoles getInstance(){
+    return AllRoles.instance;
+  }
+
   public AllRoles(){
     this.Administrator = new Administrator();
     this.Consultant = new Consultant();
@@ -46,35 +60,38 @@ public class AllRoles {
     this.RegionalDirectorOnProject = new RegionalDirectorOnProject();
     this.StaffMember = new StaffMember();
     this.Translator = new Translator();
+
+    this.allRoles = Collections.unmodifiableList(this.buildAllRolesList());
+    this.globalRoles = Collections.unmodifiableList(this.buildGlobalRolesList());
+    this.projectRoles = Collections.unmodifiableList(this.buildProjectRolesList());
+    this.allRoles.forEach(role -> this.roles.put(role.roleName, role));
+  }
+
+  public BaseRole getRole(RoleNames roleName){
+    return this.roles.get(roleName);
   }
 
   public BaseRole getRoleByStringName(String name){
-    switch (name){
-      case "AdministratorRole":                       return this.Administrator;
-      case "ConsultantRole":                          return this.Consultant;
-      case "ConsultantManagerRole":                   return this.ConsultantManager;
-      case "ControllerRole":                          return this.Controller;
-      case "FieldOperationsDirectorRole":             return this.FieldOperationsDirector;
-      case "FinancialAnalystOnProjectRole":           return this.FinancialAnalystOnProject;
-      case "FinancialAnalystGlobalRole":              return this.FinancialAnalystGlobal;
-      case "FundraisingRole":                         return this.Fundraising;
-      case "InternRole":                              return this.Intern;
-      case "LeadershipRole":                          return this.Leadership;
-      case "LiasonRole":                              return this.Liason;
-      case "MarketingRole":                           return this.Marketing;
-      case "ProjectManagerOnProjectRole":             return this.ProjectManagerOnProject;
-      case "ProjectManagerGlobalRole":                return this.ProjectManagerGlobal;
-      case "RegionalCommunicationCoordinatorRole":    return this.RegionalCommunicationCoordinator;
-      case "RegionalDirectorOnProjectRole":           return this.RegionalDirectorOnProject;
-      case "RegionalDirectorGlobalRole":              return this.RegionalDirectorGlobal;
-      case "StaffMemberRole":                         return this.StaffMember;
-      case "TranslatorRole":                          return this.Translator;
-
-      default:                                    return null;
+    try {
+      return this.roles.get(RoleNames.valueOf(name));
+    } catch (IllegalArgumentException | NullPointerException e){
+      return null;
     }
   }
 
   public List<BaseRole> allRolesList(){
+    return this.allRoles;
+  }
+
+  public List<BaseRole> globalRolesList(){
+    return this.globalRoles;
+  }
+
+  public List<BaseRole> projectRolesList(){
+    return this.projectRoles;
+  }
+
+  private List<BaseRole> buildAllRolesList(){
     return Arrays.asList(
       this.Administrator,
       this.Consultant,
@@ -98,7 +115,7 @@ public class AllRoles {
     );
   }
 
-  public List<BaseRole> globalRolesList(){
+  private List<BaseRole> buildGlobalRolesList(){
     return Arrays.asList(
       this.Administrator,
       this.ConsultantManager,
@@ -115,7 +132,7 @@ public class AllRoles {
     );
   }
 
-  public List<BaseRole> projectRolesList(){
+  private List<BaseRole> buildProjectRolesList(){
     return Arrays.asList(
       this.Consultant,
       this.FinancialAnalystOnProject,
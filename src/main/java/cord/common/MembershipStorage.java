@@ -0,0 +1,6 @@
+package cord.common;
+
+public enum MembershipStorage {
+  direct,     // every SG has a member relationship to each of its users
+  shared,     // SGs point to a long-lived MembershipGroup that holds the members
+}
@@ -3,6 +3,11 @@ package cord.common;
 public enum NonBaseNodeLabels {
   SecurityGroup,
   Permission,
+  PermissionTemplate,
+  MembershipGroup,
+  SecurityQueueItem,
+  SecurityQueueFailed,
+  SecurityRebuild,
   canRead,
   canEdit,
   Active,
@@ -3,5 +3,8 @@ package cord.common;
 public enum NonPropertyRelationshipTypes {
   baseNode,
   permission,
-  member
+  member,
+  template,
+  memberGroup,
+  scope
 }
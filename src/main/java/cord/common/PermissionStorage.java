@@ -0,0 +1,8 @@
+package cord.common;
+
+public enum PermissionStorage {
+  node,       // Permission nodes per base node property, linked from each SG
+  template,   // SGs point to one shared PermissionTemplate per (label, role)
+  bitmask,    // SGs hold readMask and editMask properties, bit i for property ordinal i
+  virtual,    // SGs only hold their role, grants come from the role's IPermission at read time
+}
@@ -0,0 +1,72 @@
+package cord.queue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import org.neo4j.configuration.Config;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventListener;
+
+import cord.CordSettings;
+import cord.common.NonBaseNodeLabels;
+import cord.common.NonPropertyRelationshipTypes;
+
+// Hands the SGs and Permission nodes of every deleted base node to the queue's
+// workers, which remove them in batches after the delete committed, so the
+// deleting transaction doesn't lock every member of the node's SGs. Off unless
+// cord.autoCleanup is true in neo4j.conf.
+public class DeletedBaseNodeListener implements TransactionEventListener<ArrayList<Long>> {
+
+  private static final Label SG_LABEL = Label.label(NonBaseNodeLabels.SecurityGroup.name());
+  private static final Label PERMISSION_LABEL = Label.label(NonBaseNodeLabels.Permission.name());
+  private static final RelationshipType BASE_NODE = RelationshipType.withName(NonPropertyRelationshipTypes.baseNode.name());
+
+  private final SecurityQueue queue;
+  private final Config config;
+
+  public DeletedBaseNodeListener(SecurityQueue queue, Config config){
+    this.queue = queue;
+    this.config = config;
+  }
+
+  @Override
+  public ArrayList<Long> beforeCommit(TransactionData data, Transaction tx, GraphDatabaseService db) throws Exception {
+    if (!this.config.get(CordSettings.autoCleanup)){
+      return null;
+    }
+
+    HashSet<Long> deletedNodes = new HashSet<>();
+    for (Node node: data.deletedNodes()){
+      deletedNodes.add(node.getId());
+    }
+    if (deletedNodes.isEmpty()){
+      return null;
+    }
+
+    // the security nodes that lost their base node and weren't deleted with it
+    ArrayList<Long> orphans = new ArrayList<>();
+    for (Relationship rel: data.deletedRelationships()){
+      if (!rel.isType(BASE_NODE) || !deletedNodes.contains(rel.getEndNodeId()) || deletedNodes.contains(rel.getStartNodeId())){
+        continue;
+      }
+      Node node = tx.getNodeById(rel.getStartNodeId());
+      if (node.hasLabel(SG_LABEL) || node.hasLabel(PERMISSION_LABEL)){
+        orphans.add(node.getId());
+      }
+    }
+
+    return orphans.isEmpty() ? null : orphans;
+  }
+
+  @Override
+  public void afterCommit(TransactionData data, ArrayList<Long> orphans, GraphDatabaseService db){
+    if (orphans != null){
+      this.queue.cleanup(orphans);
+    }
+  }
+
+  @Override
+  public void afterRollback(TransactionData data, ArrayList<Long> orphans, GraphDatabaseService db){
+  }
+}
@@ -0,0 +1,96 @@
+package cord.queue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.neo4j.configuration.Config;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventListener;
+
+import cord.CordSettings;
+import cord.Utility;
+import cord.common.AllProperties;
+import cord.common.BaseNodeLabels;
+import cord.common.NonBaseNodeLabels;
+
+// Queues security for every node created with the BaseNode label and a modelled
+// label, so the API doesn't have to call cord.processNewBaseNode after a create.
+// The queue items commit with the nodes, and the queue's workers secure a burst
+// of creates as one batch. Off unless cord.autoProcess is true in neo4j.conf.
+// Either way, a commit that queued items wakes the workers.
+public class NewBaseNodeListener implements TransactionEventListener<Boolean> {
+
+  // transaction metadata entry naming the creator when the node has no createdBy
+  public static final String CREATOR_METADATA = "creatorUserId";
+
+  private static final Label BASE_NODE = Label.label(BaseNodeLabels.BaseNode.name());
+  private static final Label ITEM = Label.label(NonBaseNodeLabels.SecurityQueueItem.name());
+
+  private final SecurityQueue queue;
+  private final Config config;
+
+  public NewBaseNodeListener(SecurityQueue queue, Config config){
+    this.queue = queue;
+    this.config = config;
+  }
+
+  @Override
+  public Boolean beforeCommit(TransactionData data, Transaction tx, GraphDatabaseService db) throws Exception {
+    // nodes the caller queued itself
+    HashSet<String> queued = new HashSet<>();
+    for (Node node: data.createdNodes()){
+      if (node.hasLabel(ITEM)){
+        queued.add((String) node.getProperty(AllProperties.baseNodeId.name(), null));
+      }
+    }
+
+    if (!this.config.get(CordSettings.autoProcess)){
+      return queued.isEmpty() ? null : true;
+    }
+
+    // collected first, the created nodes can't be iterated while items are added
+    ArrayList<Node> baseNodes = new ArrayList<>();
+    for (Node node: data.createdNodes()){
+      Object baseNodeId = node.getProperty(AllProperties.id.name(), null);
+      if (node.hasLabel(BASE_NODE) && baseNodeId instanceof String && !queued.contains(baseNodeId)){
+        baseNodes.add(node);
+      }
+    }
+
+    Boolean enqueued = false;
+    for (Node node: baseNodes){
+      BaseNodeLabels label = Utility.getBaseNodeLabel(node);
+      if (label == null){
+        continue;
+      }
+      SecurityQueue.enqueue(tx, (String) node.getProperty(AllProperties.id.name()), label.name(), 
+        this.getCreator(data, node), null);
+      enqueued = true;
+    }
+
+    return enqueued || !queued.isEmpty() ? true : null;
+  }
+
+  private String getCreator(TransactionData data, Node node){
+    Object createdBy = node.getProperty(AllProperties.createdBy.name(), null);
+    if (createdBy instanceof String){
+      return (String) createdBy;
+    }
+    Map<String, Object> metaData = data.metaData();
+    Object creator = metaData == null ? null : metaData.get(CREATOR_METADATA);
+    return creator instanceof String ? (String) creator : null;
+  }
+
+  @Override
+  public void afterCommit(TransactionData data, Boolean enqueued, GraphDatabaseService db){
+    if (enqueued != null){
+      this.queue.wake();
+    }
+  }
+
+  @Override
+  public void afterRollback(TransactionData data, Boolean enqueued, GraphDatabaseService db){
+  }
+}
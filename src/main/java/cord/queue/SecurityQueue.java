@@ -0,0 +1,363 @@
+package cord.queue;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.configuration.Config;
+import org.neo4j.graphdb.*;
+import org.neo4j.logging.Log;
+
+import cord.CordSettings;
+import cord.SecurityCleanup;
+import cord.SecurityOptions;
+import cord.SecurityProcessor;
+import cord.Utility;
+import cord.cache.SecurityCaches;
+import cord.common.AllProperties;
+import cord.common.NonBaseNodeLabels;
+
+// Durable queue of base nodes waiting for security. Requests are
+// :SecurityQueueItem nodes committed with the caller's transaction, and a
+// pool of workers started by CordExtensionFactory drains them in batches.
+// A commit that queued items wakes the workers. Otherwise they poll, backing
+// off up to cord.queue.maxPollMillis while the queue stays empty. Items are
+// processed idempotently, so a batch that is retried after a failure doesn't
+// duplicate anything. An item that keeps failing is relabelled
+// :SecurityQueueFailed, so the workers' scans only ever see pending items.
+public class SecurityQueue {
+
+  private static final ConcurrentHashMap<String, SecurityQueue> databases = new ConcurrentHashMap<>();
+
+  private static final Label ITEM = Label.label(NonBaseNodeLabels.SecurityQueueItem.name());
+  private static final Label FAILED_ITEM = Label.label(NonBaseNodeLabels.SecurityQueueFailed.name());
+  public static final String FAILED = "failed";
+  // the range on enqueuedAt lets the index return the oldest items in order, without a sort of the label
+  public static final String PENDING_ITEMS =
+    "MATCH (item:SecurityQueueItem) WHERE item.enqueuedAt >= datetime({epochMillis: 0}) AND id(item) % $workers = $shard " +
+    "RETURN id(item) as id ORDER BY item.enqueuedAt LIMIT $batchSize";
+
+  private final GraphDatabaseService db;
+  private final Log log;
+  private final int workers;
+  private final int batchSize;
+  private final long pollMillis;
+  private final long maxPollMillis;
+  private final int maxAttempts;
+  private final int cleanupBatchSize;
+
+  private ScheduledExecutorService executor;
+  // a shard is drained by one thread at a time, whether it was polled or woken
+  private final AtomicBoolean[] draining;
+  // the delay before a shard's next poll, doubled by every empty one
+  private final long[] pollDelay;
+
+  private final AtomicLong processed = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private volatile String lastError;
+
+  private SecurityQueue(GraphDatabaseService db, Log log, Config config){
+    this.db = db;
+    this.log = log;
+    this.workers = config.get(CordSettings.queueWorkers);
+    this.batchSize = config.get(CordSettings.queueBatchSize);
+    this.pollMillis = config.get(CordSettings.queuePollMillis);
+    this.maxPollMillis = Math.max(this.pollMillis, config.get(CordSettings.queueMaxPollMillis));
+    this.maxAttempts = config.get(CordSettings.queueMaxAttempts);
+    this.cleanupBatchSize = config.get(CordSettings.cleanupBatchSize);
+    this.draining = new AtomicBoolean[this.workers];
+    this.pollDelay = new long[this.workers];
+  }
+
+  public static SecurityQueue start(GraphDatabaseService db, Log log, Config config){
+    SecurityQueue queue = new SecurityQueue(db, log, config);
+    queue.executor = Executors.newScheduledThreadPool(queue.workers, runnable -> {
+      Thread thread = new Thread(runnable, "cord-security-queue-" + db.databaseName());
+      thread.setDaemon(true);
+      return thread;
+    });
+    for (int worker = 0; worker < queue.workers; worker++){
+      final int shard = worker;
+      queue.draining[shard] = new AtomicBoolean(false);
+      queue.pollDelay[shard] = queue.pollMillis;
+      queue.schedulePoll(shard);
+    }
+    queue.executor.execute(queue::parkLegacyFailures);
+    databases.put(db.databaseName(), queue);
+    return queue;
+  }
+
+  public void stop(){
+    databases.remove(db.databaseName(), this);
+    this.executor.shutdown();
+    try {
+      this.executor.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e){
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // drains every shard now instead of at the next poll
+  public void wake(){
+    for (int shard = 0; shard < this.workers; shard++){
+      final int worker = shard;
+      try {
+        this.executor.execute(() -> this.drain(worker));
+      } catch (RejectedExecutionException e){
+        return; // stopping
+      }
+    }
+  }
+
+  // deletes the SGs and Permission nodes a committed transaction orphaned, on a worker thread.
+  // anything left by a failure or a shutdown is found by cord.deleteBaseNodeSecurity([])
+  public void cleanup(List<Long> securityNodes){
+    try {
+      this.executor.execute(() -> {
+        try {
+          new SecurityCleanup(db, log, this.cleanupBatchSize).deleteSecurityNodes(securityNodes, new SecurityCleanup.CleanupResponse(), true);
+        } catch (Exception e){
+          this.log.warn("cord security cleanup of " + securityNodes.size() + " nodes: " + e.getMessage());
+        }
+      });
+    } catch (RejectedExecutionException e){
+      return; // stopping
+    }
+  }
+
+  // null if the database has no running workers
+  public static SecurityQueue forDatabase(String databaseName){
+    return databases.get(databaseName);
+  }
+
+  public static void enqueue(Transaction tx, String baseNodeId, String baseNodeLabel, String creatorUserId,
+    Map<String, Object> options) throws RuntimeException {
+
+    // reject what the workers could never process while the caller can still see the error
+    Utility.baseNodeClassStringToEnum(baseNodeLabel);
+    SecurityOptions.fromMap(options);
+
+    Node item = tx.createNode(ITEM);
+    item.setProperty(AllProperties.baseNodeId.name(), baseNodeId);
+    item.setProperty(AllProperties.label.name(), baseNodeLabel);
+    if (creatorUserId != null){
+      item.setProperty(AllProperties.creatorUserId.name(), creatorUserId);
+    }
+    if (options != null){
+      for (String option: new String[]{ "permissionStorage", "membership" }){
+        Object value = options.get(option);
+        if (value != null){
+          item.setProperty(option, value.toString());
+        }
+      }
+    }
+    item.setProperty(AllProperties.enqueuedAt.name(), ZonedDateTime.now());
+    item.setProperty(AllProperties.attempts.name(), 0L);
+  }
+
+  private void schedulePoll(int shard){
+    try {
+      this.executor.schedule(() -> this.poll(shard), this.pollDelay[shard], TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e){
+      return; // stopping
+    }
+  }
+
+  // catches items no commit on this instance woke the workers for, such as retries after a restart
+  private void poll(int shard){
+    int drained = this.drain(shard);
+    this.pollDelay[shard] = drained == 0 ? Math.min(this.pollDelay[shard] * 2, this.maxPollMillis) : this.pollMillis;
+    this.schedulePoll(shard);
+  }
+
+  // workers take the items whose neo id falls in their shard, so they never contend for one.
+  // returns the items taken, -1 if the shard was already being drained
+  private int drain(int shard){
+    if (!this.draining[shard].compareAndSet(false, true)){
+      return -1;
+    }
+    int drained = 0;
+    try {
+      int taken;
+      do {
+        taken = this.processBatch(shard);
+        drained += taken;
+      } while (taken == this.batchSize && !this.executor.isShutdown());
+    } catch (Exception e){
+      // the database may be stopping, the next poll tries again
+      this.log.warn("cord security queue worker " + shard + ": " + e.getMessage());
+    } finally {
+      this.draining[shard].set(false);
+    }
+    return drained;
+  }
+
+  private int processBatch(int shard){
+    List<Long> items = this.getPendingItems(shard);
+    if (items.isEmpty()){
+      return 0;
+    }
+
+    try (Transaction tx = db.beginTx()) {
+      this.processItems(tx, items);
+      tx.commit();
+      this.processed.addAndGet(items.size());
+    } catch (Exception e){
+      // find the items that fail on their own, the rest go through one by one
+      for (Long itemNeoId: items){
+        this.processItem(itemNeoId);
+      }
+    }
+
+    return items.size();
+  }
+
+  private void processItem(Long itemNeoId){
+    List<Long> items = new ArrayList<>();
+    items.add(itemNeoId);
+    try (Transaction tx = db.beginTx()) {
+      this.processItems(tx, items);
+      tx.commit();
+      this.processed.incrementAndGet();
+    } catch (Exception e){
+      this.failures.incrementAndGet();
+      this.lastError = e.getMessage();
+      this.log.error("cord security queue item " + itemNeoId + " failed: " + e.getMessage());
+      this.recordFailure(itemNeoId, e.getMessage());
+    }
+  }
+
+  private void processItems(Transaction tx, List<Long> items){
+    // one processor per distinct set of options, shared by the batch
+    HashMap<String, SecurityProcessor> processors = new HashMap<>();
+    SecurityCaches caches = SecurityCaches.forDatabase(db.databaseName());
+
+    try {
+      for (Long itemNeoId: items){
+        Node item = tx.getNodeById(itemNeoId);
+
+        Map<String, Object> optionMap = new HashMap<>();
+        optionMap.put("permissionStorage", item.getProperty("permissionStorage", null));
+        optionMap.put("membership", item.getProperty("membership", null));
+        String optionKey = optionMap.toString();
+
+        SecurityProcessor processor = processors.get(optionKey);
+        if (processor == null){
+          SecurityOptions options = SecurityOptions.fromMap(optionMap);
+          options.idempotent = true;
+          processor = new SecurityProcessor(tx, this.log, options, caches);
+          processors.put(optionKey, processor);
+        }
+
+        processor.processBaseNode(
+          (String) item.getProperty(AllProperties.baseNodeId.name()),
+          (String) item.getProperty(AllProperties.label.name()),
+          (String) item.getProperty(AllProperties.creatorUserId.name(), null));
+        item.delete();
+      }
+    } finally {
+      processors.values().forEach(SecurityProcessor::close);
+    }
+  }
+
+  private void recordFailure(Long itemNeoId, String error){
+    try (Transaction tx = db.beginTx()) {
+      Node item = tx.getNodeById(itemNeoId);
+      long attempts = (Long) item.getProperty(AllProperties.attempts.name(), 0L) + 1;
+      item.setProperty(AllProperties.attempts.name(), attempts);
+      item.setProperty(AllProperties.error.name(), error == null ? "unknown error" : error);
+      if (attempts >= this.maxAttempts){
+        // parked until someone looks at it, see cord.queueStatus
+        item.setProperty(AllProperties.status.name(), FAILED);
+        item.removeLabel(ITEM);
+        item.addLabel(FAILED_ITEM);
+      }
+      tx.commit();
+    } catch (Exception e){
+      this.log.error("cord security queue could not record failure of item " + itemNeoId + ": " + e.getMessage());
+    }
+  }
+
+  private List<Long> getPendingItems(int shard){
+    Map<String, Object> params = new HashMap<>();
+    params.put("workers", this.workers);
+    params.put("shard", shard);
+    params.put("batchSize", this.batchSize);
+
+    List<Long> items = new ArrayList<>();
+    try (
+      Transaction tx = db.beginTx();
+      Result result = tx.execute(PENDING_ITEMS, params)
+    ) {
+      result.forEachRemaining(row -> items.add((Long) row.get("id")));
+    }
+    return items;
+  }
+
+  // items parked before failures had their own label were only marked by their status
+  private void parkLegacyFailures(){
+    try (Transaction tx = db.beginTx()) {
+      tx.execute(
+        "MATCH (item:SecurityQueueItem) WHERE item.status = $failed " +
+        "REMOVE item:SecurityQueueItem SET item:SecurityQueueFailed",
+        Map.of("failed", FAILED)
+      ).close();
+      tx.commit();
+    } catch (Exception e){
+      this.log.warn("cord security queue could not park failed items: " + e.getMessage());
+    }
+  }
+
+  public static QueueStatus getStatus(Transaction tx, SecurityQueue queue){
+    QueueStatus status = new QueueStatus();
+
+    try (
+      Result result = tx.execute(
+        "CALL { MATCH (item:SecurityQueueItem) RETURN count(item) as depth, min(item.enqueuedAt) as oldest } " +
+        "CALL { MATCH (item:SecurityQueueFailed) RETURN count(item) as failed } " +
+        "RETURN depth, failed, oldest"
+      )
+    ) {
+      Map<String, Object> row = result.next();
+      status.depth = (Long) row.get("depth");
+      status.failed = (Long) row.get("failed");
+      Object oldest = row.get("oldest");
+      if (oldest instanceof ZonedDateTime){
+        status.lagMillis = Duration.between((ZonedDateTime) oldest, ZonedDateTime.now()).toMillis();
+      }
+    }
+
+    if (queue != null){
+      status.workers = (long) queue.workers;
+      status.processed = queue.processed.get();
+      status.failures = queue.failures.get();
+      status.lastError = queue.lastError;
+    }
+    return status;
+  }
+
+  public static class QueueStatus {
+    // items waiting to be processed
+    public Long depth = 0L;
+    // items parked after their last attempt failed
+    public Long failed = 0L;
+    // age of the oldest waiting item
+    public Long lagMillis = 0L;
+    // 0 if no workers run for the database
+    public Long workers = 0L;
+    // items processed and attempts failed since the workers started
+    public Long processed = 0L;
+    public Long failures = 0L;
+    public String lastError;
+  }
+}
@@ -1,29 +1,47 @@
 package cord;
 
-import apoc.periodic.PeriodicExtended;
-
 import org.junit.jupiter.api.*;
 import org.neo4j.configuration.GraphDatabaseSettings;
 import org.neo4j.driver.*;
 import org.neo4j.driver.exceptions.NoSuchRecordException;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.harness.Neo4j;
 import org.neo4j.harness.Neo4jBuilders;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
 import org.neo4j.logging.Log;
+import org.neo4j.logging.NullLog;
 
+import cord.cache.CacheStats;
+import cord.cache.GlobalRoleIndex;
 import cord.common.AllProperties;
 import cord.common.AllRoles;
 import cord.common.BaseNodeLabels;
 import cord.common.FeRoleNames;
+import cord.common.NonPropertyRelationshipTypes;
 import cord.common.RoleNames;
+import cord.model.Budget;
+import cord.model.BudgetRecord;
+import cord.model.Organization;
 import cord.model.Perm;
 import cord.model.Project;
+import cord.queue.SecurityQueue;
 import cord.roles.*;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
 import static org.neo4j.driver.Values.parameters;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 
 // look in the debug console for logging statements
 
@@ -32,8 +50,8 @@ public class ProcessBaseNodeTest {
 
     private static Driver driver;
 
-    // private static final Config driverConfig = Config.builder().withoutEncryption().build();
-    // private Neo4j embeddedDatabaseServer;
+    private static final Config driverConfig = Config.builder().withoutEncryption().build();
+    private Neo4j embeddedDatabaseServer;
 
     private AllRoles allRoles;
 
@@ -43,43 +61,24 @@ public class ProcessBaseNodeTest {
 
     @BeforeAll
     void initializeNeo4j() {
-        driver = GraphDatabase.driver( 
-            "bolt://localhost:7687", 
-            AuthTokens.basic( "neo4j", "reallysecurepassword" ) 
-        );
-    }   
+        this.embeddedDatabaseServer = Neo4jBuilders.newInProcessBuilder()
+                .withDisabledServer()
+                .withProcedure(Authorization.class)
+                .withProcedure(Maintenance.class)
+                .withProcedure(Membership.class)
+                .withProcedure(Access.class)
+                .withFunction(Access.class)
+                .build();
+
+        ProcessBaseNodeTest.driver = GraphDatabase.driver(embeddedDatabaseServer.boltURI(), driverConfig);
+    }
 
     @AfterAll
     void closeDriver(){
         ProcessBaseNodeTest.driver.close();
+        this.embeddedDatabaseServer.close();
     }
 
-    // @BeforeAll
-    // void initializeNeo4j() throws URISyntaxException {
-
-    //     var pluginDirContainingApocJar = new File(
-	// 		ProcessBaseNodeTest.driverConfig.getClass().getProtectionDomain().getCodeSource().getLocation().toURI())
-    //         .getParentFile().toPath();
-            
-    //     this.embeddedDatabaseServer = Neo4jBuilders.newInProcessBuilder()
-    //             .withDisabledServer()
-    //             .withConfig(GraphDatabaseSettings.plugin_dir, pluginDirContainingApocJar)
-    //             .withConfig(GraphDatabaseSettings.procedure_unrestricted, List.of("apoc.*"))
-    //             .withProcedure(apoc.periodic.PeriodicExtended.class)
-    //             .withProcedure(Authorization.class)
-    //             .build();
-
-        
-
-    //     ProcessBaseNodeTest.driver = GraphDatabase.driver(embeddedDatabaseServer.boltURI(), driverConfig);
-    // }
-
-    // @AfterAll
-    // void closeDriver(){
-    //     ProcessBaseNodeTest.driver.close();
-    //     this.embeddedDatabaseServer.close();
-    // }
-
     @Test
     public void shouldCreateAllPermissionsForAllRoles() {
 
@@ -221,6 +220,1338 @@ public class ProcessBaseNodeTest {
         }
     }
 
+    @Test
+    public void shouldSecureABatchOfProjectNodes() {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            String adminId =            "adminId"               + random.nextInt(1000000);
+            String pmOnProjectId =      "pmOnProjectId"         + random.nextInt(1000000);
+            String tranId =             "tranId"                + random.nextInt(1000000);
+
+            this.createUser(session, adminId,           AllRoles.getFrontendRoleNameFromApiRoleName(RoleNames.AdministratorRole));
+            this.createUser(session, pmOnProjectId,     AllRoles.getFrontendRoleNameFromApiRoleName(RoleNames.ProjectManagerOnProjectRole));
+            this.createUser(session, tranId,            AllRoles.getFrontendRoleNameFromApiRoleName(RoleNames.TranslatorRole));
+
+            // create project with a budget
+            String projectId = "project" + random.nextInt(1000000);
+            String budgetId = "budget" + random.nextInt(1000000);
+            this.createBaseNode(session, "Project", projectId);
+            this.createBaseNode(session, "Budget", budgetId);
+            session.run(
+                "MATCH (project:Project {id: $projectId}), (budget:Budget {id: $budgetId}) "+
+                "CREATE (project)-[:budget {active: true}]->(budget)",
+                parameters("projectId", projectId, "budgetId", budgetId)
+            );
+
+            this.addProjectMembers(session, projectId, pmOnProjectId,       FeRoleNames.ProjectManager);
+            this.addProjectMembers(session, projectId, tranId,              FeRoleNames.Translator);
+
+            // run the procedure once for both nodes
+            session.run(
+                "CALL cord.processNewBaseNodes($baseNodes)", 
+                parameters(
+                    "baseNodes", List.of(
+                        Map.of("baseNodeId", projectId, "label", "Project", "creatorUserId", pmOnProjectId),
+                        Map.of("baseNodeId", budgetId, "label", "Budget", "creatorUserId", pmOnProjectId)
+                    )
+                )
+            ).consume();
+
+            // verify results
+            this.checkRoleAccess(session, Utility.getNames(Project.class), RoleNames.AdministratorRole,                     BaseNodeLabels.Project, projectId,      adminId);      
+            this.checkRoleAccess(session, Utility.getNames(Project.class), RoleNames.ProjectManagerOnProjectRole,           BaseNodeLabels.Project, projectId,      pmOnProjectId);
+            this.checkRoleAccess(session, Utility.getNames(Budget.class),  RoleNames.AdministratorRole,                     BaseNodeLabels.Budget,  budgetId,       adminId);      
+            this.checkRoleAccess(session, Utility.getNames(Budget.class),  RoleNames.ProjectManagerOnProjectRole,           BaseNodeLabels.Budget,  budgetId,       pmOnProjectId);
+            this.checkRoleAccess(session, Utility.getNames(Budget.class),  RoleNames.TranslatorRole,                        BaseNodeLabels.Budget,  budgetId,       tranId);
+        }
+    }
+
+    @Test
+    public void shouldResolveProjectThroughCachedAncestors() {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            String pmOnProjectId =      "pmOnProjectId"         + random.nextInt(1000000);
+            this.createUser(session, pmOnProjectId,     AllRoles.getFrontendRoleNameFromApiRoleName(RoleNames.ProjectManagerOnProjectRole));
+
+            // project -> budget -> two budget records
+            String projectId = "project" + random.nextInt(1000000);
+            String budgetId = "budget" + random.nextInt(1000000);
+            String firstRecordId = "budgetRecord" + random.nextInt(1000000);
+            String secondRecordId = "budgetRecord" + random.nextInt(1000000);
+            this.createBaseNode(session, "Project", projectId);
+            this.createBaseNode(session, "Budget", budgetId);
+            this.createBaseNode(session, "BudgetRecord", firstRecordId);
+            this.createBaseNode(session, "BudgetRecord", secondRecordId);
+            session.run(
+                "MATCH (project:Project {id: $projectId}), (budget:Budget {id: $budgetId}), "+
+                "(first:BudgetRecord {id: $firstRecordId}), (second:BudgetRecord {id: $secondRecordId}) "+
+                "CREATE (project)-[:budget {active: true}]->(budget), "+
+                "(budget)-[:record {active: true}]->(first), (budget)-[:record {active: true}]->(second)",
+                parameters("projectId", projectId, "budgetId", budgetId, "firstRecordId", firstRecordId, "secondRecordId", secondRecordId)
+            );
+
+            this.addProjectMembers(session, projectId, pmOnProjectId,       FeRoleNames.ProjectManager);
+
+            // the first walk caches the budget, the second stops there
+            session.run("CALL cord.processNewBaseNode($id, 'BudgetRecord', $creator)", 
+                parameters("id", firstRecordId, "creator", pmOnProjectId)).consume();
+            long hits = session.run("CALL cord.cacheStats() YIELD name, hits WHERE name = 'projectNodes' RETURN hits")
+                .single().get("hits").asLong();
+            session.run("CALL cord.processNewBaseNode($id, 'BudgetRecord', $creator)", 
+                parameters("id", secondRecordId, "creator", pmOnProjectId)).consume();
+
+            assertThat(session.run("CALL cord.cacheStats() YIELD name, hits WHERE name = 'projectNodes' RETURN hits")
+                .single().get("hits").asLong()).isGreaterThan(hits);
+
+            this.checkRoleAccess(session, Utility.getNames(BudgetRecord.class), RoleNames.ProjectManagerOnProjectRole,  BaseNodeLabels.BudgetRecord, secondRecordId, pmOnProjectId);
+        }
+    }
+
+    @Test
+    public void shouldNotDuplicateSecurityOnIdempotentRetry() {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            String pmOnProjectId =      "pmOnProjectId"         + random.nextInt(1000000);
+            this.createUser(session, pmOnProjectId,     AllRoles.getFrontendRoleNameFromApiRoleName(RoleNames.ProjectManagerOnProjectRole));
+
+            String projectId = "project" + random.nextInt(1000000);
+            String budgetId = "budget" + random.nextInt(1000000);
+            this.createBaseNode(session, "Project", projectId);
+            this.createBaseNode(session, "Budget", budgetId);
+            session.run(
+                "MATCH (project:Project {id: $projectId}), (budget:Budget {id: $budgetId}) "+
+                "CREATE (project)-[:budget {active: true}]->(budget)",
+                parameters("projectId", projectId, "budgetId", budgetId)
+            );
+            this.addProjectMembers(session, projectId, pmOnProjectId,       FeRoleNames.ProjectManager);
+
+            String countQuery = 
+                "MATCH (budget:Budget {id: $budgetId}) " +
+                "OPTIONAL MATCH (budget)<-[:baseNode]-(perm:Permission) " +
+                "WITH budget, count(perm) as perms " +
+                "MATCH (budget)<-[:baseNode]-(sg:SecurityGroup) " +
+                "OPTIONAL MATCH (sg)-[granted:permission]->() " +
+                "WITH budget, perms, count(DISTINCT sg) as sgs, count(granted) as grants " +
+                "MATCH (budget)<-[:baseNode]-(:SecurityGroup)-[member:member]->() " +
+                "RETURN perms, sgs, grants, count(member) as members";
+
+            // a retry, e.g. after a transient error, in the same shape as the first call
+            session.run("CALL cord.processNewBaseNode($id, 'Budget', $creator, {idempotent: true})", 
+                parameters("id", budgetId, "creator", pmOnProjectId)).consume();
+            Map<String, Object> first = session.run(countQuery, parameters("budgetId", budgetId)).single().asMap();
+            session.run("CALL cord.processNewBaseNode($id, 'Budget', $creator, {idempotent: true})", 
+                parameters("id", budgetId, "creator", pmOnProjectId)).consume();
+            Map<String, Object> second = session.run(countQuery, parameters("budgetId", budgetId)).single().asMap();
+
+            assertThat(second).isEqualTo(first);
+            assertThat((Long) first.get("perms")).isEqualTo(2L * Utility.getNames(Budget.class).length);
+
+            this.checkRoleAccess(session, Utility.getNames(Budget.class),  RoleNames.ProjectManagerOnProjectRole,           BaseNodeLabels.Budget,  budgetId,       pmOnProjectId);
+        }
+    }
+
+    @Test
+    public void shouldNotDuplicateAnAdminCreator() {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            String adminId =            "adminId"               + random.nextInt(1000000);
+            String organizationId =     "organization"          + random.nextInt(1000000);
+            this.createUser(session, adminId,           AllRoles.getFrontendRoleNameFromApiRoleName(RoleNames.AdministratorRole));
+            this.createBaseNode(session, "Organization", organizationId);
+
+            // the creator is an admin user already, and is added to the admin SG a second time
+            session.run("CALL cord.processNewBaseNode($baseNodeId, 'Organization', $creatorUserId)", 
+                parameters("baseNodeId", organizationId, "creatorUserId", adminId)).consume();
+
+            assertThat(this.countMemberEdges(session, organizationId, RoleNames.AdministratorRole, adminId)).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void shouldNotDuplicateAGlobalAndProjectRegionalDirector() {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            String rdId =               "rdId"                  + random.nextInt(1000000);
+            String projectId =          "project"               + random.nextInt(1000000);
+            // a global RD is a user of RegionalDirectorOnProjectRole, which is both a global and a project role
+            this.createUser(session, rdId,              AllRoles.getFrontendRoleNameFromApiRoleName(RoleNames.RegionalDirectorOnProjectRole));
+            this.createBaseNode(session, "Project", projectId);
+            this.addProjectMembers(session, projectId, rdId,                FeRoleNames.RegionalDirector);
+
+            session.run("CALL cord.processNewBaseNode($baseNodeId, 'Project', $creatorUserId)", 
+                parameters("baseNodeId", projectId, "creatorUserId", rdId)).consume();
+
+            assertThat(this.countMemberEdges(session, projectId, RoleNames.RegionalDirectorOnProjectRole, rdId)).isEqualTo(1);
+            assertThat(this.countMemberEdges(session, projectId, RoleNames.RegionalDirectorGlobalRole, rdId)).isEqualTo(1);
+        }
+    }
+
+    private long countMemberEdges(Session session, String baseNodeId, RoleNames role, String userId){
+        return session.run(
+            "MATCH (:BaseNode {id: $baseNodeId})<-[:baseNode]-(:SecurityGroup {role: $role})-[edge:member]->(:User {id: $userId}) RETURN count(edge) as count",
+            parameters("baseNodeId", baseNodeId, "role", role.name(), "userId", userId)
+        ).single().get("count").asLong();
+    }
+
+    @Test
+    public void shouldProcessQueuedNodesInTheBackground() throws InterruptedException {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            String pmOnProjectId =      "pmOnProjectId"         + random.nextInt(1000000);
+            this.createUser(session, pmOnProjectId,     AllRoles.getFrontendRoleNameFromApiRoleName(RoleNames.ProjectManagerOnProjectRole));
+
+            String projectId = "project" + random.nextInt(1000000);
+            String budgetId = "budget" + random.nextInt(1000000);
+            this.createBaseNode(session, "Project", projectId);
+            this.addProjectMembers(session, projectId, pmOnProjectId,       FeRoleNames.ProjectManager);
+
+            // the node and its queue item commit together
+            session.run(
+                "MATCH (project:Project {id: $projectId}) "+
+                "CREATE (project)-[:budget {active: true}]->(:Budget:BaseNode {id: $budgetId, createdAt: datetime()}) "+
+                "WITH project CALL cord.enqueueNewBaseNode($budgetId, 'Budget', $creator) YIELD queued RETURN queued",
+                parameters("projectId", projectId, "budgetId", budgetId, "creator", pmOnProjectId)
+            ).consume();
+
+            long depth = 1;
+            for (int i = 0; i < 100 && depth > 0; i++){
+                Thread.sleep(100);
+                depth = session.run("CALL cord.queueStatus() YIELD depth RETURN depth").single().get("depth").asLong();
+            }
+            assertThat(depth).isEqualTo(0);
+
+            this.checkRoleAccess(session, Utility.getNames(Budget.class),  RoleNames.ProjectManagerOnProjectRole,           BaseNodeLabels.Budget,  budgetId,       pmOnProjectId);
+        }
+    }
+
+    @Test
+    public void shouldParkQueueItemsThatKeepFailing() throws InterruptedException {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            // the node never exists, so every attempt fails
+            String organizationId =     "organization"          + random.nextInt(1000000);
+            long failedBefore = session.run("CALL cord.queueStatus() YIELD failed RETURN failed").single().get("failed").asLong();
+            session.run("CALL cord.enqueueNewBaseNode($baseNodeId, 'Organization', null)", 
+                parameters("baseNodeId", organizationId)).consume();
+
+            String parked = "MATCH (item:SecurityQueueFailed {baseNodeId: $baseNodeId}) RETURN count(item) as count";
+            long count = 0;
+            for (int i = 0; i < 100 && count == 0; i++){
+                Thread.sleep(100);
+                count = session.run(parked, parameters("baseNodeId", organizationId)).single().get("count").asLong();
+            }
+            assertThat(count).isEqualTo(1);
+
+            // out of the workers' scans, still counted and holding its error
+            assertThat(session.run("MATCH (item:SecurityQueueItem {baseNodeId: $baseNodeId}) RETURN count(item) as count",
+                parameters("baseNodeId", organizationId)).single().get("count").asLong()).isEqualTo(0);
+            assertThat(session.run("MATCH (item:SecurityQueueFailed {baseNodeId: $baseNodeId}) RETURN item.error as error",
+                parameters("baseNodeId", organizationId)).single().get("error").asString()).contains(organizationId);
+            Record status = session.run("CALL cord.queueStatus()").single();
+            assertThat(status.get("failed").asLong()).isEqualTo(failedBefore + 1);
+            assertThat(status.get("depth").asLong()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void shouldSecureNewBaseNodesAutomatically() throws InterruptedException {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            String creatorId =          "creatorId"             + random.nextInt(1000000);
+            String organizationId =     "organization"          + random.nextInt(1000000);
+            this.createUser(session, creatorId,         null);
+
+            this.config().setDynamic(CordSettings.autoProcess, true, "test");
+            try {
+                // no procedure call, the creator comes from the transaction metadata
+                session.run(
+                    "CREATE (:BaseNode:Organization {id: $organizationId, createdAt: datetime()})",
+                    Map.<String, Object>of("organizationId", organizationId),
+                    TransactionConfig.builder().withMetadata(Map.of("creatorUserId", creatorId)).build()
+                ).consume();
+            } finally {
+                this.config().setDynamic(CordSettings.autoProcess, false, "test");
+            }
+
+            String memberQuery = 
+                "MATCH (:Organization {id: $organizationId})<-[:baseNode]-(:SecurityGroup {role: $role})-[:member]->(user:User {id: $creatorId}) " +
+                "RETURN count(user) as members";
+            long members = 0;
+            for (int i = 0; i < 100 && members == 0; i++){
+                Thread.sleep(100);
+                members = session.run(memberQuery, parameters("organizationId", organizationId, 
+                    "role", RoleNames.AdministratorRole.name(), "creatorId", creatorId)).single().get("members").asLong();
+            }
+            assertThat(members).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void shouldSecureNewBaseNodesWithoutACreator() throws InterruptedException {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            String organizationId =     "organization"          + random.nextInt(1000000);
+            long failedBefore = session.run("CALL cord.queueStatus() YIELD failures RETURN failures").single().get("failures").asLong();
+
+            this.config().setDynamic(CordSettings.autoProcess, true, "test");
+            try {
+                // neither createdBy nor transaction metadata names a creator
+                session.run(
+                    "CREATE (:BaseNode:Organization {id: $organizationId, createdAt: datetime()})",
+                    parameters("organizationId", organizationId)
+                ).consume();
+            } finally {
+                this.config().setDynamic(CordSettings.autoProcess, false, "test");
+            }
+
+            long sgs = 0;
+            for (int i = 0; i < 100 && sgs == 0; i++){
+                Thread.sleep(100);
+                sgs = this.countSecurityGroups(session, organizationId);
+            }
+            assertThat(sgs).isEqualTo(allRoles.globalRolesList().size());
+
+            // the item was processed, not retried and parked
+            Record status = session.run("CALL cord.queueStatus() YIELD failures RETURN failures").single();
+            assertThat(status.get("failures").asLong()).isEqualTo(failedBefore);
+            long items = session.run("MATCH (item:SecurityQueueItem {baseNodeId: $organizationId}) RETURN count(item) as items",
+                parameters("organizationId", organizationId)).single().get("items").asLong();
+            assertThat(items).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void shouldSyncProjectMemberChanges() {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            String pmOnProjectId =      "pmOnProjectId"         + random.nextInt(1000000);
+            String tranId =             "tranId"                + random.nextInt(1000000);
+            this.createUser(session, pmOnProjectId,     null);
+            this.createUser(session, tranId,            null);
+
+            String projectId = "project" + random.nextInt(1000000);
+            String budgetId = "budget" + random.nextInt(1000000);
+            this.createBaseNode(session, "Project", projectId);
+            this.createBaseNode(session, "Budget", budgetId);
+            session.run(
+                "MATCH (project:Project {id: $projectId}), (budget:Budget {id: $budgetId}) "+
+                "CREATE (project)-[:budget {active: true}]->(budget)",
+                parameters("projectId", projectId, "budgetId", budgetId)
+            );
+            this.addProjectMembers(session, projectId, tranId,              FeRoleNames.Translator);
+            session.run(
+                "CALL cord.processNewBaseNodes($baseNodes)", 
+                parameters("baseNodes", List.of(
+                    Map.of("baseNodeId", projectId, "label", "Project", "creatorUserId", tranId),
+                    Map.of("baseNodeId", budgetId, "label", "Budget", "creatorUserId", tranId)
+                ))
+            ).consume();
+
+            // the pm joins and the translator leaves after the nodes were secured
+            this.addProjectMembers(session, projectId, pmOnProjectId,       FeRoleNames.ProjectManager);
+            session.run("MATCH (:Project {id: $projectId})-[:member]->(member:ProjectMember)-[:user]->(:User {id: $tranId}) DETACH DELETE member",
+                parameters("projectId", projectId, "tranId", tranId)).consume();
+
+            Record added = session.run("CALL cord.syncProjectMember($projectId, $userId)", 
+                parameters("projectId", projectId, "userId", pmOnProjectId)).single();
+            assertThat(added.get("membersAdded").asLong()).isEqualTo(2);
+
+            Record removed = session.run("CALL cord.syncProjectMember($projectId, $userId)", 
+                parameters("projectId", projectId, "userId", tranId)).single();
+            assertThat(removed.get("membersRemoved").asLong()).isEqualTo(2);
+
+            this.checkRoleAccess(session, Utility.getNames(Budget.class),  RoleNames.ProjectManagerOnProjectRole,           BaseNodeLabels.Budget,  budgetId,       pmOnProjectId);
+            long tranMemberships = session.run(
+                "MATCH (:Budget {id: $budgetId})<-[:baseNode]-(:SecurityGroup)-[:member]->(:User {id: $tranId}) RETURN count(*) as count",
+                parameters("budgetId", budgetId, "tranId", tranId)).single().get("count").asLong();
+            assertThat(tranMemberships).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void shouldSyncUserGlobalRoleChanges() {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            String adminId =            "adminId"               + random.nextInt(1000000);
+            String creatorId =          "creatorId"             + random.nextInt(1000000);
+            this.createUser(session, creatorId,         null);
+
+            String budgetId = "budget" + random.nextInt(1000000);
+            this.createBaseNode(session, "Budget", budgetId);
+            session.run("CALL cord.processNewBaseNode($baseNodeId, 'Budget', $creatorUserId)", 
+                parameters("baseNodeId", budgetId, "creatorUserId", creatorId)).consume();
+
+            // the admin is created after the budget was secured
+            this.createUser(session, adminId,           FeRoleNames.Administrator.name());
+            Record added = session.run("CALL cord.syncUserGlobalRoles($userId)", parameters("userId", adminId)).single();
+            assertThat(added.get("membersAdded").asLong()).isGreaterThanOrEqualTo(1);
+            assertThat(this.getMemberRoles(session, budgetId, adminId)).containsExactly(RoleNames.AdministratorRole.name());
+
+            // and is moved to leadership
+            session.run("MATCH (:User {id: $userId})-[:roles]->(roles:Property) SET roles.value = [$role]", 
+                parameters("userId", adminId, "role", FeRoleNames.Leadership.name())).consume();
+            Record moved = session.run("CALL cord.syncUserGlobalRoles($userId)", parameters("userId", adminId)).single();
+            assertThat(moved.get("membersRemoved").asLong()).isGreaterThanOrEqualTo(1);
+            assertThat(this.getMemberRoles(session, budgetId, adminId)).containsExactly(RoleNames.LeadershipRole.name());
+
+            Record unchanged = session.run("CALL cord.syncUserGlobalRoles($userId)", parameters("userId", adminId)).single();
+            assertThat(unchanged.get("membersAdded").asLong()).isEqualTo(0);
+            assertThat(unchanged.get("membersRemoved").asLong()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void shouldRebuildSecurityFromTheCheckpoint() {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            String projectId = "project" + random.nextInt(1000000);
+            this.createBaseNode(session, "Project", projectId);
+            List<String> budgetIds = new ArrayList<>();
+            for (int i = 0; i < 3; i++){
+                String budgetId = "budget" + random.nextInt(1000000);
+                this.createBaseNode(session, "Budget", budgetId);
+                session.run(
+                    "MATCH (project:Project {id: $projectId}), (budget:Budget {id: $budgetId}) "+
+                    "CREATE (project)-[:budget {active: true}]->(budget)",
+                    parameters("projectId", projectId, "budgetId", budgetId)
+                );
+                budgetIds.add(budgetId);
+            }
+
+            // a run that was stopped after the first budget. ids freed by other tests
+            // can be reused, so the budgets are put in id order first
+            budgetIds = session.run("MATCH (budget:Budget) WHERE budget.id IN $budgetIds RETURN budget.id as id ORDER BY id(budget)",
+                parameters("budgetIds", budgetIds)).list(row -> row.get("id").asString());
+            session.run(
+                "MATCH (budget:Budget {id: $budgetId}) " +
+                "MERGE (checkpoint:SecurityRebuild {label: 'Budget'}) " +
+                "SET checkpoint.lastNodeId = id(budget), checkpoint.processed = 1, checkpoint.failed = 0",
+                parameters("budgetId", budgetIds.get(0))).consume();
+
+            List<Record> rows = session.run("CALL cord.rebuildSecurity(['Budget', 'Project'], 1, 2)").list();
+            assertThat(rows.get(0).get("label").asString()).isEqualTo("Project");
+            Record last = rows.get(rows.size() - 1);
+            assertThat(last.get("label").asString()).isEqualTo("Budget");
+            assertThat(last.get("done").asBoolean()).isTrue();
+            assertThat(last.get("failed").asLong()).isEqualTo(0);
+
+            assertThat(this.countSecurityGroups(session, projectId)).isGreaterThan(0);
+            assertThat(this.countSecurityGroups(session, budgetIds.get(0))).isEqualTo(0);
+            assertThat(this.countSecurityGroups(session, budgetIds.get(1))).isGreaterThan(0);
+            assertThat(this.countSecurityGroups(session, budgetIds.get(2))).isGreaterThan(0);
+
+            long checkpoints = session.run("MATCH (checkpoint:SecurityRebuild) RETURN count(checkpoint) as count")
+                .single().get("count").asLong();
+            assertThat(checkpoints).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void shouldDeleteSecurityOfDeletedBaseNodes() throws InterruptedException {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            String creatorId =          "creatorId"             + random.nextInt(1000000);
+            this.createUser(session, creatorId,         null);
+
+            List<String> organizationIds = new ArrayList<>();
+            for (int i = 0; i < 3; i++){
+                String organizationId = "organization" + random.nextInt(1000000);
+                this.createBaseNode(session, "Organization", organizationId);
+                session.run("CALL cord.processNewBaseNode($baseNodeId, 'Organization', $creatorUserId)", 
+                    parameters("baseNodeId", organizationId, "creatorUserId", creatorId)).consume();
+                organizationIds.add(organizationId);
+            }
+
+            // before the node is deleted, in batches smaller than one SG
+            Record deleted = session.run("CALL cord.deleteBaseNodeSecurity([$baseNodeId], 7)", 
+                parameters("baseNodeId", organizationIds.get(0))).single();
+            assertThat(deleted.get("securityGroups").asLong()).isEqualTo(allRoles.globalRolesList().size());
+            assertThat(deleted.get("permissionNodes").asLong()).isGreaterThan(0);
+            assertThat(this.countSecurityGroups(session, organizationIds.get(0))).isEqualTo(0);
+
+            // by the listener, after the delete committed
+            List<Long> sgs = this.getSecurityGroupIds(session, organizationIds.get(1));
+            this.config().setDynamic(CordSettings.autoCleanup, true, "test");
+            try {
+                session.run("MATCH (node:Organization {id: $baseNodeId}) DETACH DELETE node", 
+                    parameters("baseNodeId", organizationIds.get(1))).consume();
+            } finally {
+                this.config().setDynamic(CordSettings.autoCleanup, false, "test");
+            }
+            long left = sgs.size();
+            for (int i = 0; i < 100 && left > 0; i++){
+                Thread.sleep(100);
+                left = this.countNodes(session, sgs);
+            }
+            assertThat(left).isEqualTo(0);
+
+            // by the sweep, after a delete nobody cleaned up after
+            sgs = this.getSecurityGroupIds(session, organizationIds.get(2));
+            session.run("MATCH (node:Organization {id: $baseNodeId}) DETACH DELETE node", 
+                parameters("baseNodeId", organizationIds.get(2))).consume();
+            Record swept = session.run("CALL cord.deleteBaseNodeSecurity()").single();
+            assertThat(swept.get("securityGroups").asLong()).isGreaterThanOrEqualTo(sgs.size());
+            assertThat(this.countNodes(session, sgs)).isEqualTo(0);
+
+            long memberships = session.run("MATCH (:SecurityGroup)-[:member]->(:User {id: $creatorId}) RETURN count(*) as count",
+                parameters("creatorId", creatorId)).single().get("count").asLong();
+            assertThat(memberships).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void shouldKeepSecurityNodesReusingAnOrphanId() {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            String creatorId =          "creatorId"             + random.nextInt(1000000);
+            String organizationId =     "organization"          + random.nextInt(1000000);
+            this.createUser(session, creatorId,         null);
+            this.createBaseNode(session, "Organization", organizationId);
+            session.run("CALL cord.processNewBaseNode($baseNodeId, 'Organization', $creatorUserId, {permissionStorage: 'template'})", 
+                parameters("baseNodeId", organizationId, "creatorUserId", creatorId)).consume();
+
+            // ids queued as orphans that now belong to a live SG and a template's Permission node
+            List<Long> ids = new ArrayList<>(this.getSecurityGroupIds(session, organizationId));
+            ids.add(session.run(
+                "MATCH (:Organization {id: $baseNodeId})<-[:baseNode]-(:SecurityGroup)-[:template]->(:PermissionTemplate)-[:permission]->(perm:Permission) " +
+                "RETURN id(perm) as id LIMIT 1",
+                parameters("baseNodeId", organizationId)).single().get("id").asLong());
+
+            SecurityCleanup.CleanupResponse response = new SecurityCleanup.CleanupResponse();
+            new SecurityCleanup(this.embeddedDatabaseServer.defaultDatabaseService(), NullLog.getInstance(), 100)
+                .deleteSecurityNodes(ids, response, true);
+
+            assertThat(response.securityGroups).isEqualTo(0);
+            assertThat(response.permissionNodes).isEqualTo(0);
+            assertThat(response.relationships).isEqualTo(0);
+            assertThat(this.countNodes(session, ids)).isEqualTo(ids.size());
+        }
+    }
+
+    @Test
+    public void shouldCompactDuplicateSecurity() {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            String creatorId =          "creatorId"             + random.nextInt(1000000);
+            String organizationId =     "organization"          + random.nextInt(1000000);
+            this.createUser(session, creatorId,         null);
+            this.createBaseNode(session, "Organization", organizationId);
+
+            session.run("CALL cord.processNewBaseNode($baseNodeId, 'Organization', $creatorUserId)", 
+                parameters("baseNodeId", organizationId, "creatorUserId", creatorId)).consume();
+
+            // what repeated processing used to leave: a second admin SG, a second Permission node,
+            // a parallel member edge and an SG without a base node
+            session.run(
+                "MATCH (node:Organization {id: $baseNodeId})<-[:baseNode]-(sg:SecurityGroup {role: $role}) " +
+                "CREATE (dup:SecurityGroup {role: sg.role, createdAt: datetime()})-[:baseNode]->(node) " +
+                "WITH sg, dup MATCH (sg)-[:permission]->(perm) CREATE (dup)-[:permission]->(perm) " +
+                "WITH DISTINCT sg, dup MATCH (sg)-[:member]->(user) CREATE (dup)-[:member]->(user)",
+                parameters("baseNodeId", organizationId, "role", RoleNames.AdministratorRole.name())).consume();
+            session.run(
+                "MATCH (node:Organization {id: $baseNodeId})<-[:baseNode]-(perm:Permission) WITH node, perm LIMIT 1 " +
+                "CREATE (dup:Permission {property: perm.property, read: perm.read, edit: perm.edit})-[:baseNode]->(node)",
+                parameters("baseNodeId", organizationId)).consume();
+            session.run(
+                "MATCH (:Organization {id: $baseNodeId})<-[:baseNode]-(sg:SecurityGroup {role: $role})-[:member]->(user:User {id: $creatorId}) " +
+                "WITH sg, user ORDER BY id(sg) LIMIT 1 CREATE (sg)-[:member]->(user)",
+                parameters("baseNodeId", organizationId, "role", RoleNames.AdministratorRole.name(), "creatorId", creatorId)).consume();
+            session.run("CREATE (:SecurityGroup {role: $role})", parameters("role", RoleNames.AdministratorRole.name())).consume();
+
+            Record compacted = session.run("CALL cord.compactSecurity(2, 2)").single();
+            assertThat(compacted.get("securityGroupsMerged").asLong()).isGreaterThanOrEqualTo(1);
+            assertThat(compacted.get("permissionNodesMerged").asLong()).isGreaterThanOrEqualTo(1);
+            assertThat(compacted.get("duplicateEdges").asLong()).isGreaterThanOrEqualTo(1);
+            assertThat(compacted.get("orphanedSecurityGroups").asLong()).isGreaterThanOrEqualTo(1);
+            assertThat(compacted.get("recordsReclaimed").asLong()).isGreaterThan(0);
+
+            assertThat(this.countSecurityGroups(session, organizationId)).isEqualTo(allRoles.globalRolesList().size());
+            long duplicatePerms = session.run(
+                "MATCH (:Organization {id: $baseNodeId})<-[:baseNode]-(perm:Permission) " +
+                "WITH perm.property as property, perm.edit as edit, count(perm) as perms WHERE perms > 1 RETURN count(*) as count",
+                parameters("baseNodeId", organizationId)).single().get("count").asLong();
+            assertThat(duplicatePerms).isEqualTo(0);
+            assertThat(this.getMemberRoles(session, organizationId, creatorId)).containsExactly(RoleNames.AdministratorRole.name());
+            this.checkRoleAccess(session, Utility.getNames(Organization.class), RoleNames.AdministratorRole, BaseNodeLabels.Organization, organizationId, creatorId);
+
+            Record again = session.run("CALL cord.compactSecurity()").single();
+            assertThat(again.get("securityGroupsMerged").asLong()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void shouldResolvePermissionsForManyNodes() {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            String pmOnProjectId =      "pmOnProjectId"         + random.nextInt(1000000);
+            String outsiderId =         "outsiderId"            + random.nextInt(1000000);
+            this.createUser(session, pmOnProjectId,     null);
+            this.createUser(session, outsiderId,        null);
+
+            String projectId = "project" + random.nextInt(1000000);
+            this.createBaseNode(session, "Project", projectId);
+            this.addProjectMembers(session, projectId, pmOnProjectId,       FeRoleNames.ProjectManager);
+
+            // one budget per storage combination
+            List<Map<String, Object>> options = List.of(
+                Map.of(),
+                Map.of("permissionStorage", "template", "membership", "shared")
+            );
+            List<String> budgetIds = new ArrayList<>();
+            for (Map<String, Object> option: options){
+                String budgetId = "budget" + random.nextInt(1000000);
+                this.createBaseNode(session, "Budget", budgetId);
+                session.run(
+                    "MATCH (project:Project {id: $projectId}), (budget:Budget {id: $budgetId}) "+
+                    "CREATE (project)-[:budget {active: true}]->(budget)",
+                    parameters("projectId", projectId, "budgetId", budgetId)
+                );
+                session.run("CALL cord.processNewBaseNode($baseNodeId, 'Budget', $creatorUserId, $options)", 
+                    parameters("baseNodeId", budgetId, "creatorUserId", pmOnProjectId, "options", option)).consume();
+                budgetIds.add(budgetId);
+            }
+
+            // long enough to be split across threads
+            List<String> ids = new ArrayList<>();
+            for (int i = 0; i < 300; i++){
+                ids.add(budgetIds.get(i % budgetIds.size()));
+            }
+            ids.add("missing" + random.nextInt(1000000));
+
+            List<Record> rows = session.run("CALL cord.permissionsFor($userId, $ids, 'Budget')", 
+                parameters("userId", pmOnProjectId, "ids", ids)).list();
+            assertThat(rows).hasSize(ids.size());
+
+            PermissionMatrix matrix = PermissionMatrix.getInstance();
+            for (int i = 0; i < 300; i++){
+                assertThat(rows.get(i).get("baseNodeId").asString()).isEqualTo(ids.get(i));
+                Map<String, Object> permissions = rows.get(i).get("permissions").asMap();
+                for (String property: Utility.getNames(Budget.class)){
+                    Perm perm = matrix.get(RoleNames.ProjectManagerOnProjectRole, BaseNodeLabels.Budget, property);
+                    assertThat(permissions.get(property)).isEqualTo(Map.of("read", perm != Perm.NO, "edit", perm == Perm.RW));
+                }
+            }
+            assertThat(rows.get(300).get("permissions").asMap()).isEmpty();
+
+            Record outsider = session.run("CALL cord.permissionsFor($userId, $ids, 'Budget')", 
+                parameters("userId", outsiderId, "ids", budgetIds.subList(0, 1))).single();
+            for (Object permission: outsider.get("permissions").asMap().values()){
+                assertThat(permission).isEqualTo(Map.of("read", false, "edit", false));
+            }
+        }
+    }
+
+    @Test
+    public void shouldResolveUncommittedNodesInTheCallersTransaction() {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            String creatorId =          "creatorId"             + random.nextInt(1000000);
+            String organizationId =     "organization"          + random.nextInt(1000000);
+            this.createUser(session, creatorId,         null);
+
+            try (Transaction tx = session.beginTransaction()) {
+                tx.run("CREATE (:BaseNode:Organization {id:$baseNodeId, createdAt: datetime()})", parameters("baseNodeId", organizationId)).consume();
+                tx.run("CALL cord.processNewBaseNode($baseNodeId, 'Organization', $creatorUserId)", 
+                    parameters("baseNodeId", organizationId, "creatorUserId", creatorId)).consume();
+
+                // long enough to be split across threads, which can't see the node
+                List<String> ids = new ArrayList<>();
+                for (int i = 0; i < 300; i++){
+                    ids.add(organizationId);
+                }
+                List<Record> rows = tx.run("CALL cord.permissionsFor($userId, $ids, 'Organization')", 
+                    parameters("userId", creatorId, "ids", ids)).list();
+                assertThat(rows).hasSize(ids.size());
+
+                PermissionMatrix matrix = PermissionMatrix.getInstance();
+                for (Record row: rows){
+                    Map<String, Object> permissions = row.get("permissions").asMap();
+                    for (String property: Utility.getNames(Organization.class)){
+                        Perm perm = matrix.get(RoleNames.AdministratorRole, BaseNodeLabels.Organization, property);
+                        assertThat(permissions.get(property)).isEqualTo(Map.of("read", perm != Perm.NO, "edit", perm == Perm.RW));
+                    }
+                }
+                tx.commit();
+            }
+        }
+    }
+
+    @Test
+    public void shouldFilterReadableNodesInline() {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            String pmOnProjectId =      "pmOnProjectId"         + random.nextInt(1000000);
+            this.createUser(session, pmOnProjectId,     null);
+
+            // the pm's project has a budget of each storage, another project has one too
+            String projectId = "project" + random.nextInt(1000000);
+            String otherProjectId = "project" + random.nextInt(1000000);
+            this.createBaseNode(session, "Project", projectId);
+            this.createBaseNode(session, "Project", otherProjectId);
+            this.addProjectMembers(session, projectId, pmOnProjectId,       FeRoleNames.ProjectManager);
+
+            String batch = "batch" + random.nextInt(1000000);
+            List<Map<String, Object>> budgets = List.of(
+                Map.of("projectId", projectId, "options", Map.of()),
+                Map.of("projectId", projectId, "options", Map.of("permissionStorage", "template", "membership", "shared")),
+                Map.of("projectId", otherProjectId, "options", Map.of())
+            );
+            for (Map<String, Object> budget: budgets){
+                String budgetId = "budget" + random.nextInt(1000000);
+                session.run(
+                    "MATCH (project:Project {id: $projectId}) "+
+                    "CREATE (project)-[:budget {active: true}]->(:BaseNode:Budget {id: $budgetId, batch: $batch, createdAt: datetime()})",
+                    parameters("projectId", budget.get("projectId"), "budgetId", budgetId, "batch", batch)
+                );
+                session.run("CALL cord.processNewBaseNode($baseNodeId, 'Budget', $creatorUserId, $options)", 
+                    parameters("baseNodeId", budgetId, "creatorUserId", pmOnProjectId, "options", budget.get("options"))).consume();
+            }
+
+            String readable = null;
+            String unreadable = null;
+            for (String property: Utility.getNames(Budget.class)){
+                Perm perm = PermissionMatrix.getInstance().get(RoleNames.ProjectManagerOnProjectRole, BaseNodeLabels.Budget, property);
+                if (perm == Perm.NO){
+                    unreadable = property;
+                } else {
+                    readable = property;
+                }
+            }
+
+            String query = 
+                "MATCH (budget:Budget {batch: $batch}) " +
+                "RETURN [budget IN cord.filterReadable($userId, collect(budget), $property) | budget.id] as ids";
+            List<Object> ids = session.run(query, parameters("batch", batch, 
+                "userId", pmOnProjectId, "property", readable)).single().get("ids").asList();
+            assertThat(ids).hasSize(2);
+
+            if (unreadable != null){
+                ids = session.run(query, parameters("batch", batch, 
+                    "userId", pmOnProjectId, "property", unreadable)).single().get("ids").asList();
+                assertThat(ids).isEmpty();
+            }
+        }
+    }
+
+    @Test
+    public void shouldAnswerProjectNodesFromCachedMasks() {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            String pmOnProjectId =      "pmOnProjectId"         + random.nextInt(1000000);
+            this.createUser(session, pmOnProjectId,     null);
+
+            String projectId = "project" + random.nextInt(1000000);
+            String budgetId = "budget" + random.nextInt(1000000);
+            this.createBaseNode(session, "Project", projectId);
+            this.createBaseNode(session, "Budget", budgetId);
+            session.run(
+                "MATCH (project:Project {id: $projectId}), (budget:Budget {id: $budgetId}) "+
+                "CREATE (project)-[:budget {active: true}]->(budget)",
+                parameters("projectId", projectId, "budgetId", budgetId)
+            );
+            // an SG with its own Permission nodes can be edited, so its node isn't answered from the masks
+            String editedId = "budget" + random.nextInt(1000000);
+            this.createBaseNode(session, "Budget", editedId);
+            session.run(
+                "MATCH (project:Project {id: $projectId}), (budget:Budget {id: $budgetId}) "+
+                "CREATE (project)-[:budget {active: true}]->(budget)",
+                parameters("projectId", projectId, "budgetId", editedId)
+            );
+            this.addProjectMembers(session, projectId, pmOnProjectId,       FeRoleNames.ProjectManager);
+            session.run("CALL cord.processNewBaseNode($baseNodeId, 'Budget', $creatorUserId, {permissionStorage: 'template'})", 
+                parameters("baseNodeId", budgetId, "creatorUserId", pmOnProjectId)).consume();
+            session.run("CALL cord.processNewBaseNode($baseNodeId, 'Budget', $creatorUserId)", 
+                parameters("baseNodeId", editedId, "creatorUserId", pmOnProjectId)).consume();
+
+            String query = "CALL cord.permissionsFor($userId, [$budgetId], 'Budget') YIELD permissions " +
+                "RETURN size([permission IN [property IN keys(permissions) | permissions[property]] WHERE permission.read]) as readable";
+            long hits = this.getCacheHits(session, "projectMasks");
+            long readable = session.run(query, parameters("userId", pmOnProjectId, "budgetId", budgetId)).single().get("readable").asLong();
+            assertThat(readable).isGreaterThan(0);
+            assertThat(session.run(query, parameters("userId", pmOnProjectId, "budgetId", budgetId)).single().get("readable").asLong())
+                .isEqualTo(readable);
+            assertThat(this.getCacheHits(session, "projectMasks")).isGreaterThan(hits);
+
+            session.run(
+                "MATCH (:Budget {id: $budgetId})<-[:baseNode]-(:SecurityGroup {role: $role})-[grant:permission]->(:Permission {read: true}) DELETE grant",
+                parameters("budgetId", editedId, "role", RoleNames.ProjectManagerOnProjectRole.name())).consume();
+            assertThat(session.run(query, parameters("userId", pmOnProjectId, "budgetId", editedId)).single().get("readable").asLong())
+                .isEqualTo(0);
+
+            // the member leaving invalidates the masks, before the SGs are synced
+            session.run("MATCH (:Project {id: $projectId})-[:member]->(member:ProjectMember) DETACH DELETE member",
+                parameters("projectId", projectId)).consume();
+            assertThat(session.run(query, parameters("userId", pmOnProjectId, "budgetId", budgetId)).single().get("readable").asLong())
+                .isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void shouldMigrateOnlyRoleGrantsToTemplates() {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            String creatorId =          "creatorId"             + random.nextInt(1000000);
+            String matchingId =         "organization"          + random.nextInt(1000000);
+            String changedId =          "organization"          + random.nextInt(1000000);
+            this.createUser(session, creatorId,         null);
+            this.createBaseNode(session, "Organization", matchingId);
+            this.createBaseNode(session, "Organization", changedId);
+            for (String organizationId: List.of(matchingId, changedId)){
+                session.run("CALL cord.processNewBaseNode($baseNodeId, 'Organization', $creatorUserId)", 
+                    parameters("baseNodeId", organizationId, "creatorUserId", creatorId)).consume();
+            }
+
+            // the admin SG of one node no longer grants a property its role grants
+            PermissionMatrix matrix = PermissionMatrix.getInstance();
+            String revoked = null;
+            for (String property: Utility.getNames(Organization.class)){
+                if (matrix.get(RoleNames.AdministratorRole, BaseNodeLabels.Organization, property) != Perm.NO){
+                    revoked = property;
+                    break;
+                }
+            }
+            session.run(
+                "MATCH (:Organization {id: $baseNodeId})<-[:baseNode]-(:SecurityGroup {role: $role})-[grant:permission]->(:Permission {property: $property}) DELETE grant",
+                parameters("baseNodeId", changedId, "role", RoleNames.AdministratorRole.name(), "property", revoked)).consume();
+
+            String permissionsFor = "CALL cord.permissionsFor($userId, [$baseNodeId], 'Organization') YIELD permissions RETURN permissions";
+            Map<String, Object> matchingBefore = session.run(permissionsFor, parameters("userId", creatorId, "baseNodeId", matchingId))
+                .single().get("permissions").asMap();
+            Map<String, Object> changedBefore = session.run(permissionsFor, parameters("userId", creatorId, "baseNodeId", changedId))
+                .single().get("permissions").asMap();
+            assertThat(changedBefore.get(revoked)).isEqualTo(Map.of("read", false, "edit", false));
+
+            Record migrated = session.run("CALL cord.migrateToPermissionTemplates(10)").single();
+            assertThat(migrated.get("securityGroupsSkipped").asLong()).isGreaterThanOrEqualTo(1);
+
+            String adminStorage = "MATCH (:Organization {id: $baseNodeId})<-[:baseNode]-(sg:SecurityGroup {role: $role}) RETURN sg.storage as storage";
+            String permissionCount = "MATCH (:Organization {id: $baseNodeId})<-[:baseNode]-(perm:Permission) RETURN count(perm) as count";
+
+            // a node whose SGs all hold their role's grants moves onto templates
+            assertThat(session.run(adminStorage, parameters("baseNodeId", matchingId, "role", RoleNames.AdministratorRole.name()))
+                .single().get("storage").asString()).isEqualTo("template");
+            assertThat(session.run(permissionCount, parameters("baseNodeId", matchingId)).single().get("count").asLong()).isEqualTo(0);
+            assertThat(session.run(permissionsFor, parameters("userId", creatorId, "baseNodeId", matchingId))
+                .single().get("permissions").asMap()).isEqualTo(matchingBefore);
+
+            // the changed SG keeps its own grants, and the node its Permission nodes
+            assertThat(session.run(adminStorage, parameters("baseNodeId", changedId, "role", RoleNames.AdministratorRole.name()))
+                .single().get("storage").asString()).isEqualTo("node");
+            assertThat(session.run(permissionCount, parameters("baseNodeId", changedId)).single().get("count").asLong()).isGreaterThan(0);
+            assertThat(session.run(permissionsFor, parameters("userId", creatorId, "baseNodeId", changedId))
+                .single().get("permissions").asMap()).isEqualTo(changedBefore);
+        }
+    }
+
+    @Test
+    public void shouldCountGlobalRoleIndexMisses() {
+
+        GraphDatabaseService db = this.embeddedDatabaseServer.defaultDatabaseService();
+        GlobalRoleIndex index = new GlobalRoleIndex();
+
+        try (org.neo4j.graphdb.Transaction tx = db.beginTx()) {
+            String role = AllRoles.getFrontendRoleNameFromApiRoleName(RoleNames.AdministratorRole);
+            index.getUsers(tx, role);
+            index.getUsers(tx, role);
+            CacheStats stats = index.getStats();
+            assertThat(stats.hits).isEqualTo(1);
+            assertThat(stats.misses).isEqualTo(1);
+            assertThat(stats.rebuilds).isEqualTo(1);
+            assertThat(stats.hitRate).isEqualTo(0.5);
+
+            index.invalidate();
+            index.getUsers(tx, role);
+            stats = index.getStats();
+            assertThat(stats.hits).isEqualTo(1);
+            assertThat(stats.misses).isEqualTo(2);
+            assertThat(stats.rebuilds).isEqualTo(2);
+            assertThat(stats.invalidations).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void shouldWriteSecurityThroughTheKernel() {
+
+        GraphDatabaseService db = this.embeddedDatabaseServer.defaultDatabaseService();
+        List<String> model = Utility.getBaseNodePropertiesByLabel(BaseNodeLabels.Budget);
+
+        try (org.neo4j.graphdb.Transaction tx = db.beginTx(); SecurityWriter writer = new SecurityWriter(tx)) {
+            long[] perms = writer.createPermissionNodes(BaseNodeLabels.Budget, model);
+            assertThat(perms).hasSize(model.size() * 2);
+            for (int i = 0; i < model.size(); i++){
+                Node read = tx.getNodeById(perms[2 * i]);
+                Node edit = tx.getNodeById(perms[2 * i + 1]);
+                for (Node perm: List.of(read, edit)){
+                    assertThat(perm.getProperty(AllProperties.property.name())).isEqualTo(model.get(i));
+                    assertThat(perm.getProperty(AllProperties.read.name())).isEqualTo(true);
+                    assertThat(perm.hasLabel(Label.label("Permission"))).isTrue();
+                    assertThat(perm.hasLabel(Label.label("Budget" + model.get(i)))).isTrue();
+                    assertThat(perm.hasLabel(Label.label("canRead"))).isTrue();
+                }
+                assertThat(read.hasProperty(AllProperties.edit.name())).isFalse();
+                assertThat(read.hasLabel(Label.label("canEdit"))).isFalse();
+                assertThat(edit.getProperty(AllProperties.edit.name())).isEqualTo(true);
+                assertThat(edit.hasLabel(Label.label("canEdit"))).isTrue();
+            }
+
+            // one SG with a single member who is a member of many SGs, one SG with many members
+            long sg = writer.createSecurityGroup();
+            long crowdedSg = writer.createSecurityGroup();
+            long user = tx.createNode(Label.label("User")).getId();
+            long otherUser = tx.createNode(Label.label("User")).getId();
+            writer.relate(sg, NonPropertyRelationshipTypes.member, user);
+            List<Long> members = new ArrayList<>();
+            for (int i = 0; i < 5; i++){
+                writer.relate(writer.createSecurityGroup(), NonPropertyRelationshipTypes.member, user);
+                long member = tx.createNode(Label.label("User")).getId();
+                writer.relate(crowdedSg, NonPropertyRelationshipTypes.member, member);
+                members.add(member);
+            }
+            writer.relate(crowdedSg, NonPropertyRelationshipTypes.member, otherUser);
+
+            Relationship rel = tx.getNodeById(sg).getSingleRelationship(
+                RelationshipType.withName(NonPropertyRelationshipTypes.member.name()), Direction.OUTGOING);
+            assertThat(rel.getEndNodeId()).isEqualTo(user);
+
+            assertThat(writer.isRelated(sg, NonPropertyRelationshipTypes.member, user)).isTrue();
+            assertThat(writer.isRelated(sg, NonPropertyRelationshipTypes.member, otherUser)).isFalse();
+            assertThat(writer.isRelated(crowdedSg, NonPropertyRelationshipTypes.member, otherUser)).isTrue();
+            assertThat(writer.isRelated(crowdedSg, NonPropertyRelationshipTypes.member, user)).isFalse();
+            assertThat(writer.isRelated(user, NonPropertyRelationshipTypes.member, sg)).isFalse();
+            assertThat(writer.isRelated(sg, NonPropertyRelationshipTypes.memberGroup, user)).isFalse();
+            assertThat(writer.getRelatedNodes(crowdedSg, NonPropertyRelationshipTypes.member, Direction.OUTGOING))
+                .hasSize(members.size() + 1).containsAll(members).contains(otherUser);
+            assertThat(writer.hasRelationship(user, NonPropertyRelationshipTypes.member, Direction.INCOMING)).isTrue();
+            assertThat(writer.hasRelationship(user, NonPropertyRelationshipTypes.member, Direction.OUTGOING)).isFalse();
+        }
+    }
+
+    @Test
+    public void shouldCompileTheRoleClassesIntoThePermissionMatrix() {
+
+        PermissionMatrix matrix = PermissionMatrix.getInstance();
+        for (BaseNodeLabels label: BaseNodeLabels.values()){
+            List<String> model = Utility.getBaseNodePropertiesByLabel(label);
+            assertThat(matrix.getProperties(label)).isEqualTo(model);
+            if (model == null){
+                continue;
+            }
+
+            for (BaseRole role: allRoles.allRolesList()){
+                BitSet readMask = BitSet.valueOf(matrix.getMask(role.roleName, label, false));
+                BitSet editMask = BitSet.valueOf(matrix.getMask(role.roleName, label, true));
+                for (int i = 0; i < model.size(); i++){
+                    String property = model.get(i);
+                    Perm perm = role.permission.permission(label, property);
+                    String grant = role.roleName + " " + label + "." + property;
+
+                    assertThat(matrix.getPropertyOrdinal(label, property)).as(grant).isEqualTo(i);
+                    assertThat(matrix.get(role.roleName, label, i)).as(grant).isEqualTo(perm);
+                    assertThat(matrix.get(role.roleName, label, property)).as(grant).isEqualTo(perm);
+                    assertThat(readMask.get(i)).as(grant).isEqualTo(perm != Perm.NO);
+                    assertThat(editMask.get(i)).as(grant).isEqualTo(perm == Perm.RW);
+                }
+                assertThat(matrix.get(role.roleName, label, "notAProperty")).isEqualTo(Perm.NO);
+            }
+        }
+    }
+
+    @Test
+    public void shouldKeepPermissionNodesOfSkippedSgsAcrossMigrations() throws InterruptedException {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            String creatorId =          "creatorId"             + random.nextInt(1000000);
+            String organizationId =     "organization"          + random.nextInt(1000000);
+            this.createUser(session, creatorId,         null);
+            this.createBaseNode(session, "Organization", organizationId);
+            session.run("CALL cord.processNewBaseNode($baseNodeId, 'Organization', $creatorUserId)", 
+                parameters("baseNodeId", organizationId, "creatorUserId", creatorId)).consume();
+
+            // the admin SG grants less than its role, so the first run keeps it on Permission nodes
+            session.run(
+                "MATCH (:Organization {id: $baseNodeId})<-[:baseNode]-(:SecurityGroup {role: $role})-[grant:permission]->(:Permission {edit: true}) DELETE grant",
+                parameters("baseNodeId", organizationId, "role", RoleNames.AdministratorRole.name())).consume();
+            session.run("CALL cord.migrateToPermissionTemplates()").consume();
+
+            // node storage processing adds an SG without a storage marker, so the next run visits the node again
+            session.run(
+                "MATCH (:Organization {id: $baseNodeId})<-[:baseNode]-(sg:SecurityGroup {role: $role}) DETACH DELETE sg",
+                parameters("baseNodeId", organizationId, "role", RoleNames.MarketingRole.name())).consume();
+            session.run("CALL cord.enqueueNewBaseNode($baseNodeId, 'Organization', null)", 
+                parameters("baseNodeId", organizationId)).consume();
+            long depth = 1;
+            for (int i = 0; i < 100 && depth > 0; i++){
+                Thread.sleep(100);
+                depth = session.run("CALL cord.queueStatus() YIELD depth RETURN depth").single().get("depth").asLong();
+            }
+            assertThat(depth).isEqualTo(0);
+
+            String permissionsFor = "CALL cord.permissionsFor($userId, [$baseNodeId], 'Organization') YIELD permissions RETURN permissions";
+            Map<String, Object> before = session.run(permissionsFor, parameters("userId", creatorId, "baseNodeId", organizationId))
+                .single().get("permissions").asMap();
+
+            Record migrated = session.run("CALL cord.migrateToPermissionTemplates()").single();
+            assertThat(migrated.get("securityGroups").asLong()).isGreaterThanOrEqualTo(1);
+
+            String storage = "MATCH (:Organization {id: $baseNodeId})<-[:baseNode]-(sg:SecurityGroup {role: $role}) RETURN sg.storage as storage";
+            assertThat(session.run(storage, parameters("baseNodeId", organizationId, "role", RoleNames.MarketingRole.name()))
+                .single().get("storage").asString()).isEqualTo("template");
+            long grants = session.run(
+                "MATCH (:Organization {id: $baseNodeId})<-[:baseNode]-(:SecurityGroup {role: $role})-[grant:permission]->() RETURN count(grant) as count",
+                parameters("baseNodeId", organizationId, "role", RoleNames.AdministratorRole.name())).single().get("count").asLong();
+            assertThat(grants).isGreaterThan(0);
+            assertThat(session.run(permissionsFor, parameters("userId", creatorId, "baseNodeId", organizationId))
+                .single().get("permissions").asMap()).isEqualTo(before);
+        }
+    }
+
+    @Test
+    public void shouldStorePermissionsAsMasks() {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            String creatorId =          "creatorId"             + random.nextInt(1000000);
+            String maskedId =           "organization"          + random.nextInt(1000000);
+            String migratedId =         "organization"          + random.nextInt(1000000);
+            this.createUser(session, creatorId,         null);
+            this.createBaseNode(session, "Organization", maskedId);
+            this.createBaseNode(session, "Organization", migratedId);
+
+            session.run("CALL cord.processNewBaseNode($baseNodeId, 'Organization', $creatorUserId, {permissionStorage: 'bitmask'})", 
+                parameters("baseNodeId", maskedId, "creatorUserId", creatorId)).consume();
+            session.run("CALL cord.processNewBaseNode($baseNodeId, 'Organization', $creatorUserId)", 
+                parameters("baseNodeId", migratedId, "creatorUserId", creatorId)).consume();
+
+            String permissionCount = "MATCH (:Organization {id: $baseNodeId})<-[:baseNode]-(perm:Permission) RETURN count(perm) as count";
+            assertThat(session.run(permissionCount, parameters("baseNodeId", maskedId)).single().get("count").asLong()).isEqualTo(0);
+            assertThat(this.countSecurityGroups(session, maskedId)).isEqualTo(allRoles.globalRolesList().size());
+
+            // the admin SG reads back the role's grants
+            Map<String, Object> adminPermissions = session.run(
+                "MATCH (:Organization {id: $baseNodeId})<-[:baseNode]-(sg:SecurityGroup {role: $role}) RETURN cord.securityGroupPermissions(sg) as permissions",
+                parameters("baseNodeId", maskedId, "role", RoleNames.AdministratorRole.name())).single().get("permissions").asMap();
+            PermissionMatrix matrix = PermissionMatrix.getInstance();
+            for (String property: Utility.getNames(Organization.class)){
+                Perm perm = matrix.get(RoleNames.AdministratorRole, BaseNodeLabels.Organization, property);
+                assertThat(adminPermissions.get(property)).isEqualTo(Map.of("read", perm != Perm.NO, "edit", perm == Perm.RW));
+            }
+
+            String permissionsFor = "CALL cord.permissionsFor($userId, [$baseNodeId], 'Organization') YIELD permissions RETURN permissions";
+            Map<String, Object> masked = session.run(permissionsFor, parameters("userId", creatorId, "baseNodeId", maskedId))
+                .single().get("permissions").asMap();
+            assertThat(masked).isEqualTo(adminPermissions);
+
+            // the node stored layout moves onto masks with the same grants
+            Map<String, Object> before = session.run(permissionsFor, parameters("userId", creatorId, "baseNodeId", migratedId))
+                .single().get("permissions").asMap();
+            Record migrated = session.run("CALL cord.migrateToPermissionMasks(10)").single();
+            assertThat(migrated.get("securityGroups").asLong()).isGreaterThanOrEqualTo(allRoles.globalRolesList().size());
+            assertThat(session.run(permissionCount, parameters("baseNodeId", migratedId)).single().get("count").asLong()).isEqualTo(0);
+            Map<String, Object> after = session.run(permissionsFor, parameters("userId", creatorId, "baseNodeId", migratedId))
+                .single().get("permissions").asMap();
+            assertThat(after).isEqualTo(before);
+            assertThat(after).isEqualTo(adminPermissions);
+        }
+    }
+
+    @Test
+    public void shouldReadVirtualPermissionsFromRoles() {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            String creatorId =          "creatorId"             + random.nextInt(1000000);
+            String orgId =              "organization"          + random.nextInt(1000000);
+            this.createUser(session, creatorId,         null);
+            this.createBaseNode(session, "Organization", orgId);
+
+            session.run("CALL cord.processNewBaseNode($baseNodeId, 'Organization', $creatorUserId, {permissionStorage: 'virtual'})", 
+                parameters("baseNodeId", orgId, "creatorUserId", creatorId)).consume();
+
+            // only SGs and their members are written
+            assertThat(this.countSecurityGroups(session, orgId)).isEqualTo(allRoles.globalRolesList().size());
+            Record stored = session.run(
+                "MATCH (org:Organization {id: $baseNodeId}) " +
+                "OPTIONAL MATCH (org)<-[:baseNode]-(perm:Permission) " +
+                "OPTIONAL MATCH (org)<-[:baseNode]-(sg:SecurityGroup) WHERE (sg)-[:permission|template]->() OR sg.readMask IS NOT NULL " +
+                "RETURN count(DISTINCT perm) as perms, count(DISTINCT sg) as sgs",
+                parameters("baseNodeId", orgId)).single();
+            assertThat(stored.get("perms").asLong()).isEqualTo(0);
+            assertThat(stored.get("sgs").asLong()).isEqualTo(0);
+
+            Map<String, Object> adminPermissions = session.run(
+                "MATCH (:Organization {id: $baseNodeId})<-[:baseNode]-(sg:SecurityGroup {role: $role}) RETURN cord.securityGroupPermissions(sg) as permissions",
+                parameters("baseNodeId", orgId, "role", RoleNames.AdministratorRole.name())).single().get("permissions").asMap();
+            PermissionMatrix matrix = PermissionMatrix.getInstance();
+            for (String property: Utility.getNames(Organization.class)){
+                Perm perm = matrix.get(RoleNames.AdministratorRole, BaseNodeLabels.Organization, property);
+                assertThat(adminPermissions.get(property)).isEqualTo(Map.of("read", perm != Perm.NO, "edit", perm == Perm.RW));
+            }
+
+            Map<String, Object> permissions = session.run(
+                "CALL cord.permissionsFor($userId, [$baseNodeId], 'Organization') YIELD permissions RETURN permissions",
+                parameters("userId", creatorId, "baseNodeId", orgId)).single().get("permissions").asMap();
+            assertThat(permissions).isEqualTo(adminPermissions);
+
+            long readable = session.run(
+                "MATCH (org:Organization {id: $baseNodeId}) RETURN size(cord.filterReadable($userId, [org], 'name')) as readable",
+                parameters("userId", creatorId, "baseNodeId", orgId)).single().get("readable").asLong();
+            assertThat(readable).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void shouldEnsureSecurityIndexes() {
+
+        try(Session session = driver.session()){
+            List<Record> indexes = session.run("CALL cord.ensureSchema()").list();
+            assertThat(indexes.size()).isEqualTo(SecuritySchema.getRequiredIndexes().size());
+            for (Record index: indexes){
+                assertThat(index.get("action").asString()).isIn("created", "existing");
+                assertThat(index.get("state").asString()).isEqualTo("ONLINE");
+            }
+
+            // a second run finds every index
+            List<Record> verified = session.run("CALL cord.ensureSchema(false)").list();
+            for (Record index: verified){
+                assertThat(index.get("action").asString()).isEqualTo("existing");
+            }
+            assertThat(verified.stream().anyMatch(index -> 
+                index.get("label").asString().equals("SecurityGroup") && index.get("property").asString().equals("role"))).isTrue();
+
+            // the keys the plugin owns are unique, the lookups are plain indexes
+            for (Record index: verified){
+                assertThat(index.get("constraint").isNull()).isEqualTo(!index.get("unique").asBoolean());
+            }
+            assertThat(verified.stream().filter(index -> index.get("unique").asBoolean()).count()).isEqualTo(3);
+
+            // the oldest pending items come from the index, in order, rather than a sort of the label
+            String plan = session.run("EXPLAIN " + SecurityQueue.PENDING_ITEMS, 
+                parameters("workers", 2, "shard", 0, "batchSize", 100)).consume().plan().toString();
+            assertThat(plan).contains("NodeIndexSeekByRange").doesNotContain("operatorType='Sort").doesNotContain("operatorType='Top");
+        }
+    }
+
+    // the config the extension of the default database reads its dynamic settings from
+    private org.neo4j.configuration.Config config(){
+        return ((GraphDatabaseAPI) embeddedDatabaseServer.defaultDatabaseService()).getDependencyResolver()
+            .resolveDependency(org.neo4j.configuration.Config.class);
+    }
+
+    private long getCacheHits(Session session, String name){
+        return session.run("CALL cord.cacheStats() YIELD name, hits WHERE name = $name RETURN hits", 
+            parameters("name", name)).single().get("hits").asLong();
+    }
+
+    private List<Long> getSecurityGroupIds(Session session, String baseNodeId){
+        return session.run("MATCH (:BaseNode {id: $baseNodeId})<-[:baseNode]-(sg:SecurityGroup) RETURN id(sg) as id",
+            parameters("baseNodeId", baseNodeId)).list(row -> row.get("id").asLong());
+    }
+
+    private long countNodes(Session session, List<Long> nodeIds){
+        return session.run("MATCH (node) WHERE id(node) IN $nodeIds RETURN count(node) as count",
+            parameters("nodeIds", nodeIds)).single().get("count").asLong();
+    }
+
+    @Test
+    public void shouldShareOneTemplateBetweenConcurrentCallers() throws Exception {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            String creatorId =          "creatorId"             + random.nextInt(1000000);
+            String firstSongId =        "song"                  + random.nextInt(1000000);
+            String secondSongId =       "song"                  + random.nextInt(1000000);
+            this.createUser(session, creatorId,         null);
+            this.createBaseNode(session, "Song", firstSongId);
+            this.createBaseNode(session, "Song", secondSongId);
+            session.run("CALL cord.ensureSchema()").consume();
+
+            this.runConcurrently(
+                "CALL cord.processNewBaseNode($baseNodeId, 'Song', $creatorUserId, {permissionStorage: 'template'})",
+                parameters("baseNodeId", firstSongId, "creatorUserId", creatorId),
+                parameters("baseNodeId", secondSongId, "creatorUserId", creatorId));
+
+            // one template per role, shared by the SGs of both songs
+            Record templates = session.run(
+                "MATCH (song:Song)<-[:baseNode]-(sg:SecurityGroup)-[:template]->(template:PermissionTemplate) " +
+                "WHERE song.id IN [$firstSongId, $secondSongId] " +
+                "RETURN count(DISTINCT template) as templates, count(sg) as sgs",
+                parameters("firstSongId", firstSongId, "secondSongId", secondSongId)).single();
+            assertThat(templates.get("templates").asLong()).isEqualTo(allRoles.globalRolesList().size());
+            assertThat(templates.get("sgs").asLong()).isEqualTo(2 * allRoles.globalRolesList().size());
+            long duplicated = session.run(
+                "MATCH (template:PermissionTemplate {label: 'Song'}) WITH template.key as key, count(*) as copies " +
+                "WHERE copies > 1 RETURN count(key) as duplicated").single().get("duplicated").asLong();
+            assertThat(duplicated).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void shouldShareOneGlobalMembershipGroupBetweenConcurrentCallers() throws Exception {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            String creatorId =          "creatorId"             + random.nextInt(1000000);
+            String firstStoryId =       "story"                 + random.nextInt(1000000);
+            String secondStoryId =      "story"                 + random.nextInt(1000000);
+            this.createUser(session, creatorId,         null);
+            this.createBaseNode(session, "Story", firstStoryId);
+            this.createBaseNode(session, "Story", secondStoryId);
+            session.run("CALL cord.ensureSchema()").consume();
+
+            this.runConcurrently(
+                "CALL cord.processNewBaseNode($baseNodeId, 'Story', $creatorUserId, {membership: 'shared'})",
+                parameters("baseNodeId", firstStoryId, "creatorUserId", creatorId),
+                parameters("baseNodeId", secondStoryId, "creatorUserId", creatorId));
+
+            // one group per global role, shared by the SGs of both stories
+            Record groups = session.run(
+                "MATCH (story:Story)<-[:baseNode]-(sg:SecurityGroup)-[:memberGroup]->(group:MembershipGroup) " +
+                "WHERE story.id IN [$firstStoryId, $secondStoryId] " +
+                "RETURN count(DISTINCT group) as groups, count(sg) as sgs",
+                parameters("firstStoryId", firstStoryId, "secondStoryId", secondStoryId)).single();
+            assertThat(groups.get("groups").asLong()).isEqualTo(allRoles.globalRolesList().size());
+            assertThat(groups.get("sgs").asLong()).isEqualTo(2 * allRoles.globalRolesList().size());
+            long duplicated = session.run(
+                "MATCH (group:MembershipGroup {label: 'Story'}) WITH group.key as key, count(*) as copies " +
+                "WHERE copies > 1 RETURN count(key) as duplicated").single().get("duplicated").asLong();
+            assertThat(duplicated).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void shouldShareOneProjectMembershipGroupBetweenConcurrentCallers() throws Exception {
+
+        try(Session session = driver.session()){
+            Random random = new Random();
+
+            String pmOnProjectId =      "pmOnProjectId"         + random.nextInt(1000000);
+            // no global role, so the global groups don't hold the user's lock
+            this.createUser(session, pmOnProjectId,     null);
+
+            String projectId = "project" + random.nextInt(1000000);
+            String firstBudgetId = "budget" + random.nextInt(1000000);
+            String secondBudgetId = "budget" + random.nextInt(1000000);
+            this.createBaseNode(session, "Project", projectId);
+            this.addProjectMembers(session, projectId, pmOnProjectId,       FeRoleNames.ProjectManager);
+            // consumed, so the setup has committed before the other sessions start
+            session.run(
+                "MATCH (project:Project {id: $projectId}) "+
+                "CREATE (project)-[:budget {active: true}]->(:BaseNode:Budget {id: $firstBudgetId, createdAt: datetime()}), "+
+                "(project)-[:budget {active: true}]->(:BaseNode:Budget {id: $secondBudgetId, createdAt: datetime()})",
+                parameters("projectId", projectId, "firstBudgetId", firstBudgetId, "secondBudgetId", secondBudgetId)
+            ).consume();
+
+            this.runConcurrently(
+                "CALL cord.processNewBaseNode($baseNodeId, 'Budget', $creatorUserId, {membership: 'shared'})",
+                parameters("baseNodeId", firstBudgetId, "creatorUserId", pmOnProjectId),
+                parameters("baseNodeId", secondBudgetId, "creatorUserId", pmOnProjectId));
+
+            // each role has one group for the project, and both budgets' SGs use it
+            List<Record> groups = session.run(
+                "MATCH (group:MembershipGroup)-[:scope]->(:Project {id: $projectId}) " +
+                "OPTIONAL MATCH (group)<-[:memberGroup]-(sg:SecurityGroup) " +
+                "RETURN id(group) as group, group.key as key, count(sg) as sgs",
+                parameters("projectId", projectId)).list();
+            assertThat(groups.stream().map(group -> group.get("key").asString()).distinct().count()).isEqualTo(groups.size());
+            assertThat(groups).isNotEmpty();
+            for (Record group: groups){
+                assertThat(group.get("sgs").asLong()).isEqualTo(2);
+            }
+            long members = session.run(
+                "MATCH (:Project {id: $projectId})<-[:scope]-(group:MembershipGroup {role: $role})-[:member]->(:User {id: $userId}) " +
+                "RETURN count(group) as members",
+                parameters("projectId", projectId, "role", RoleNames.ProjectManagerOnProjectRole.name(), "userId", pmOnProjectId))
+                .single().get("members").asLong();
+            assertThat(members).isEqualTo(1);
+        }
+    }
+
+    // the second query runs while the first one's transaction is still open, and
+    // both commit, the first one first
+    private void runConcurrently(String query, Value first, Value second) throws Exception {
+        try(Session firstSession = driver.session(); Session secondSession = driver.session()){
+            Transaction firstTx = firstSession.beginTransaction();
+            firstTx.run(query, first).consume();
+
+            AtomicReference<Exception> error = new AtomicReference<>();
+            Thread thread = new Thread(() -> {
+                try(Transaction secondTx = secondSession.beginTransaction()){
+                    secondTx.run(query, second).consume();
+                    secondTx.commit();
+                } catch (Exception e){
+                    error.set(e);
+                }
+            });
+            thread.start();
+
+            // give the second transaction time to reach the first one's uncommitted nodes
+            Thread.sleep(500);
+            firstTx.commit();
+            firstTx.close();
+            thread.join(30000);
+            if (error.get() != null){
+                throw error.get();
+            }
+        }
+    }
+
+    private long countSecurityGroups(Session session, String baseNodeId){
+        return session.run("MATCH (:BaseNode {id: $baseNodeId})<-[:baseNode]-(sg:SecurityGroup) RETURN count(sg) as count",
+            parameters("baseNodeId", baseNodeId)).single().get("count").asLong();
+    }
+
+    private List<String> getMemberRoles(Session session, String baseNodeId, String userId){
+        return session.run(
+            "MATCH (:BaseNode {id: $baseNodeId})<-[:baseNode]-(sg:SecurityGroup)-[:member]->(:User {id: $userId}) RETURN sg.role as role",
+            parameters("baseNodeId", baseNodeId, "userId", userId)).list(row -> row.get("role").asString());
+    }
+
     private void checkRoleAccess(
         Session session, 
         String[] properties, 